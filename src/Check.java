@@ -1,209 +1,284 @@
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 
+// checks the log of a run in a single pass
+// the log is mapped a window at a time and split in lines and tokens by hand (tokens are separated
+// by single spaces, NUL bytes are dropped); only the [CHECK] lines, the BEGIN lines and the lines
+// printed are turned into strings.
+// the lines to print are kept while reading and printed at the end in the order of the former
+// multi-pass check: the Seed lines, the Info lines, the client order, the INFO lines (BEGIN, END ABORT,
+// TIMEOUT, COMMIT OK/FAIL, Crashing), the servers seen by every matched txn, the diff of every matched
+// txn and the final sum:
+//   the i-th BEGIN of a client matches its i-th txn (by first [CHECK] line, the client is the last
+//   char of the txn id), in the order of the BEGINs; the diff of a txn adds the change of the sum of
+//   every server it left (a transfer leaves the total unchanged); the final sum adds the last value
+//   of every server
 public class Check{
-  static String fileName;
-  static ArrayList<String> order = new ArrayList<String>();
-  static Map<String, ArrayList<Integer>> changes = new LinkedHashMap<>();
-  static Map<String, Map<String, Integer>> results = new LinkedHashMap<>();
-  static Map<String, Integer> diffs = new LinkedHashMap<>();
-  static String lastTxnId;
-  
-  /*---------------------------------------------------------- */
-  public static void getOrder(){  
-    String line;
-
-    try {
-
-      BufferedReader reader = new BufferedReader(new FileReader(fileName));
+  static final int WINDOW = 1 << 26;   // bytes mapped at a time
+
+  static final byte[] CHECK = bytes("[CHECK]");
+  static final byte[] BEGIN = bytes("BEGIN");
+  static final byte[] SEED = bytes("Seed:");
+  static final byte[] INFO = bytes("Info:");
+  static final byte[] END = bytes("END");
+  static final byte[] ABORT = bytes("ABORT");
+  static final byte[] TIMEOUT = bytes("TIMEOUT");
+  static final byte[] OK = bytes("OK");
+  static final byte[] FAIL = bytes("FAIL");
+  static final byte[] COMMIT = bytes("COMMIT");
+  static final byte[] CRASHING = bytes("Crashing");
+
+  // the line being read, and where its tokens start and end
+  static byte[] line = new byte[1 << 12];
+  static int length;
+  static int[] starts = new int[64];
+  static int[] ends = new int[64];
+  static int tokens;
+
+  static PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+  static final byte[] NEWLINE = bytes(System.lineSeparator());
+
+  // the lines printed, kept apart until the end
+  static ByteArrayOutputStream seedLines = new ByteArrayOutputStream();
+  static ByteArrayOutputStream infoLines = new ByteArrayOutputStream();
+  static ByteArrayOutputStream eventLines = new ByteArrayOutputStream();
+
+  // a txn with the last value it left on every server, in the order the servers were seen
+  static class Txn {
+    final String name;
+    int[] servers = new int[4];
+    int[] values = new int[4];
+    int n;
+    int diff;
+
+    Txn(String name){
+      this.name = name;
+    }
 
-      while((line = reader.readLine()) != null) {
-        line = line.replace("\0", "");
-        String[] l = line.split(" ");
-   
-        if(Arrays.stream(l).anyMatch("BEGIN"::equals)){
-          order.add(l[1]);
+    void put(int server, int value){
+      for(int i=0; i<n; i++){
+        if(servers[i] == server){
+          values[i] = value;
+          return;
         }
       }
-
-      reader.close();
-
-    } catch(Exception ex) {
-      ex.printStackTrace();
+      if(n == servers.length){
+        servers = Arrays.copyOf(servers, 2*n);
+        values = Arrays.copyOf(values, 2*n);
+      }
+      servers[n] = server;
+      values[n++] = value;
     }
   }
 
-  /*---------------------------------------------------------- */
-  public static void printKeyword(String keyword){
-    String line;
-    try {
-
-      BufferedReader reader = new BufferedReader(new FileReader(fileName));
-
-      while((line = reader.readLine()) != null) {
-        line = line.replace("\0", "");
-        String[] l = line.split(" ");
-  
-        if(Arrays.stream(l).anyMatch(keyword::equals)){
-          System.out.println(line);
-        }
-      }
+  static ArrayList<String> order = new ArrayList<String>();
+  static Map<String, String> clients = new HashMap<>();                 // client names of the BEGINs, shared
+  static Map<String, Txn> txns = new HashMap<>();
+  static Map<Character, ArrayList<Txn>> txnsOfClient = new HashMap<>();  // by first [CHECK] line
+  static Map<String, Integer> serverIds = new HashMap<>();
+  static ArrayList<String> servers = new ArrayList<>();
+  static ArrayList<Integer> lastValue = new ArrayList<>();               // of every server
 
-      reader.close();
+  /*---------------------------------------------------------- */
+  static byte[] bytes(String s){
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
 
-    } catch(Exception ex) {
-      ex.printStackTrace();
+  static boolean is(int t, byte[] keyword){
+    if(ends[t] - starts[t] != keyword.length) return false;
+    for(int i=0; i<keyword.length; i++){
+      if(line[starts[t] + i] != keyword[i]) return false;
     }
+    return true;
   }
 
-  /*---------------------------------------------------------- */
-  public static void matchOrder(String o){
-    String line;
-    String toMatch = "";
-    try {
-
-      BufferedReader reader = new BufferedReader(new FileReader(fileName));
-
-      while((line = reader.readLine()) != null) {
-        line = line.replace("\0", "");
-        String[] l = line.split(" ");
-  
-        if(Arrays.stream(l).anyMatch("[CHECK]"::equals)){
-          String txnId = l[1];
-          String serverId = l[2];
-          int dataStoreValue = Integer.parseInt(l[3]);
-
-          if(changes.containsKey(serverId)){
-            changes.get(serverId).add(dataStoreValue);
-          }else{
-            changes.put(serverId ,new ArrayList<>());
-            changes.get(serverId).add(1000);
-            changes.get(serverId).add(dataStoreValue);
-          }
+  static boolean has(byte[] keyword){
+    for(int t=0; t<tokens; t++){
+      if(is(t, keyword)) return true;
+    }
+    return false;
+  }
 
+  static String token(int t){
+    return new String(line, starts[t], ends[t] - starts[t], StandardCharsets.UTF_8);
+  }
 
-          if(txnId.substring((txnId.length() - 1)).equals(o) && toMatch.equals("")){
-            
-            if(!diffs.containsKey(txnId)){
-              diffs.put(txnId, 0);
-            }
-            int d = diffs.get(txnId) + changes.get(serverId).get(changes.get(serverId).size()-1) - dataStoreValue;
-            diffs.put(txnId, d);
-
-
-            if(!results.containsKey(txnId)){
-              toMatch = txnId;
-              if(results.isEmpty()){
-                results.put(txnId, new HashMap<>());
-                lastTxnId = txnId;
-              }else{
-                Map<String, Integer> copy = new HashMap<>();
-                copy.putAll(results.get(lastTxnId));
-                results.put(txnId, copy);
-                lastTxnId = txnId;
-              }
-            }
-          }
+  static int number(int t){
+    int i = starts[t];
+    boolean negative = i < ends[t] && line[i] == '-';
+    if(negative) i++;
+    if(i == ends[t]) return Integer.parseInt(token(t));
+    int n = 0;
+    for(; i<ends[t]; i++){
+      int d = line[i] - '0';
+      if(d < 0 || d > 9) return Integer.parseInt(token(t));   // malformed: fails as before
+      n = 10*n + d;
+    }
+    return negative ? -n : n;
+  }
 
-          if(txnId.substring((txnId.length() - 1)).equals(o) && toMatch.equals(txnId)){
-            if(results.get(txnId).containsKey(serverId)){
-              results.get(txnId).replace(serverId,dataStoreValue);
-            }else{
-              results.get(txnId).put(serverId,dataStoreValue);
-            }
-          }
+  static void print(ByteArrayOutputStream lines){
+    lines.write(line, 0, length);
+    lines.write(NEWLINE, 0, NEWLINE.length);
+  }
 
-        }
+  /*---------------------------------------------------------- */
+  // split the line in tokens at every space (as String.split(" "), without the trailing empty ones)
+  static void tokenize(){
+    tokens = 0;
+    int start = 0;
+    for(int i=0; i<=length; i++){
+      if(i < length && line[i] != ' ') continue;
+      if(tokens == starts.length){
+        starts = Arrays.copyOf(starts, 2*tokens);
+        ends = Arrays.copyOf(ends, 2*tokens);
       }
+      starts[tokens] = start;
+      ends[tokens++] = i;
+      start = i + 1;
+    }
+    while(tokens > 0 && starts[tokens-1] == ends[tokens-1]) tokens--;
+  }
 
-      reader.close();
+  static void onLine(){
+    tokenize();
+    if(tokens == 0) return;
 
-    } catch(Exception ex) {
-      ex.printStackTrace();
+    if(has(SEED)) print(seedLines);
+    if(has(INFO)) print(infoLines);
+
+    if(has(CHECK) && tokens >= 4){
+      onCheck();
+      return;
     }
+
+    boolean begin = has(BEGIN);
+    if(begin && tokens >= 2) order.add(clients.computeIfAbsent(token(1), c -> c));
+
+    // the INFO lines
+    if(begin) print(eventLines);
+    if(has(END) && has(ABORT)) print(eventLines);
+    if(has(TIMEOUT)) print(eventLines);
+    if(has(OK) || has(FAIL) && has(COMMIT)) print(eventLines);
+    if(has(CRASHING)) print(eventLines);
   }
 
-  /*---------------------------------------------------------- */
-  public static void printINFO(){
-    String line;
-    try {
-      
-      BufferedReader reader = new BufferedReader(new FileReader(fileName));
-
-      while((line = reader.readLine()) != null) {
-        line = line.replace("\0", "");
-        String[] l = line.split(" ");
-
-        if(Arrays.stream(l).anyMatch("BEGIN"::equals)){
-          System.out.println(line);
-        }
+  // "[CHECK] txnId serverId sum"
+  static void onCheck(){
+    String txnId = token(1);
+    int server = serverIds.computeIfAbsent(token(2), s -> {
+      servers.add(s);
+      lastValue.add(1000);
+      return servers.size() - 1;
+    });
+    int dataStoreValue = number(3);
 
-        if(Arrays.stream(l).anyMatch("END"::equals) && Arrays.stream(l).anyMatch("ABORT"::equals)){
-          System.out.println(line);
-        }
+    int previousValue = lastValue.get(server);
+    lastValue.set(server, dataStoreValue);
 
-        if(Arrays.stream(l).anyMatch("TIMEOUT"::equals)){
-          System.out.println(line);
-        }
-  
-        if(Arrays.stream(l).anyMatch("OK"::equals) || Arrays.stream(l).anyMatch("FAIL"::equals)
-          && Arrays.stream(l).anyMatch("COMMIT"::equals)){
-          System.out.println(line);
-        }
+    Txn txn = txns.get(txnId);
+    if(txn == null){
+      txn = new Txn(txnId);
+      txns.put(txnId, txn);
+      txnsOfClient.computeIfAbsent(txnId.charAt(txnId.length() - 1), c -> new ArrayList<>()).add(txn);
+    }
+    txn.diff += previousValue - dataStoreValue;
+    txn.put(server, dataStoreValue);
+  }
 
-        if(Arrays.stream(l).anyMatch("Crashing"::equals)){
-          System.out.println(line);
+  /*---------------------------------------------------------- */
+  static void read(String fileName) throws IOException {
+    byte[] chunk = new byte[1 << 16];
+    boolean afterCR = false;
+    try(FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)){
+      long size = channel.size();
+      for(long position=0; position<size; position+=WINDOW){
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+        while(window.hasRemaining()){
+          int n = Math.min(chunk.length, window.remaining());
+          window.get(chunk, 0, n);
+          for(int i=0; i<n; i++){
+            byte b = chunk[i];
+            if(b == '\n' && afterCR){
+              afterCR = false;
+              continue;
+            }
+            afterCR = b == '\r';
+            if(b == '\n' || b == '\r'){
+              onLine();
+              length = 0;
+            }else if(b != 0){
+              if(length == line.length) line = Arrays.copyOf(line, 2*length);
+              line[length++] = b;
+            }
+          }
         }
-        
       }
-
-      reader.close();
-
-    } catch(Exception ex) {
-      ex.printStackTrace();
     }
+    if(length > 0) onLine();
   }
 
   /*---------------------------------------------------------- */
-  public static void main(String[] args) {
-    fileName = args[0];
+  public static void main(String[] args) throws IOException {
+    read(args[0]);
 
-    printKeyword("Seed:");
-    printKeyword("Info:");
+    seedLines.writeTo(out);
+    infoLines.writeTo(out);
+    out.println("Client Order "+order);
+    out.println();
 
-    getOrder();  
-    System.out.println("Client Order "+order);
-    System.out.println();
-
-    printINFO();
-    System.out.println();
+    eventLines.writeTo(out);
+    out.println();
 
+    // the i-th BEGIN of a client matches its i-th txn
+    List<Txn> matched = new ArrayList<>();
+    Map<String, Integer> next = new HashMap<>();
     for(String o : order){
-      matchOrder(o);
+      if(o.length() != 1) continue;   // never the last char of a txn id
+      List<Txn> l = txnsOfClient.get(o.charAt(0));
+      int i = next.getOrDefault(o, 0);
+      if(l == null || i == l.size()) continue;
+      matched.add(l.get(i));
+      next.put(o, i + 1);
     }
-    
-    results.entrySet().forEach(entry -> {
-      System.out.println(entry.getKey() + " " + entry.getValue());
-    });
-    System.out.println();
 
-    for(String key : diffs.keySet()){
-      if(diffs.get(key) == 0){
-        System.out.println(key + " " + diffs.get(key) + " OK");
+    // every txn shows the servers of the ones matched before it, with its own values
+    Map<String, Integer> seen = new HashMap<>();
+    for(Txn txn : matched){
+      Map<String, Integer> copy = new HashMap<>();
+      copy.putAll(seen);
+      for(int i=0; i<txn.n; i++){
+        copy.put(servers.get(txn.servers[i]), txn.values[i]);
+      }
+      out.println(txn.name + " " + copy);
+      seen = copy;
+    }
+    out.println();
+
+    for(Txn txn : matched){
+      if(txn.diff == 0){
+        out.println(txn.name + " " + txn.diff + " OK");
       }else{
-        System.out.println(key + " " + diffs.get(key) + " WRONG");
+        out.println(txn.name + " " + txn.diff + " WRONG");
       }
     }
-    System.out.println();
+    out.println();
 
     int finalSum = 0;
-    for(String key : changes.keySet()){
-      finalSum = finalSum + changes.get(key).get(changes.get(key).size()-1);
+    if(!order.isEmpty()){
+      for(int value : lastValue){
+        finalSum = finalSum + value;
+      }
     }
     if(finalSum % 1000 == 0){
-      System.out.println("Final sum = " + finalSum + " OK");
+      out.println("Final sum = " + finalSum + " OK");
     }else{
-      System.out.println("Final sum = " + finalSum + " WRONG");
+      out.println("Final sum = " + finalSum + " WRONG");
     }
+    out.flush();
   }
 }
@@ -0,0 +1,92 @@
+package it.unitn.ds1;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+// checkpoint of the data store of a server in a memory-mapped file
+// file = {log position, {version, value} for every key}
+// only the dirty pages of the data store are copied; the copy is done by the server,
+// then the file is forced and the log position is published in background.
+// The log position is published only after the pages are durable, so the
+// replay from there always covers the changes that may be missing in the file.
+public class TxnCheckpoint {
+  private static final int HEADER = 8;        // log position from where to replay, -1 if no checkpoint yet
+  private static final int KEY_BYTES = 8;     // version, value
+
+  // background thread forcing the checkpoints of all the servers
+  private static final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+    Thread t = new Thread(runnable, "txn-checkpoint");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int firstKey;
+  private final int size;
+
+  // create a new empty checkpoint for the given data store
+  public TxnCheckpoint(Path path, TxnDataStore dataStore) {
+    this.firstKey = dataStore.firstKey();
+    this.size = dataStore.size();
+    try{
+      Files.createDirectories(path.getParent());
+      this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+              StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) size*KEY_BYTES);
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+    buffer.putLong(0, -1);
+  }
+
+  // copy the dirty pages of the data store in the file
+  // return the number of pages copied
+  public int copyDirty(TxnDataStore dataStore){
+    int copied = 0;
+    for(int page=0; page<dataStore.pages(); page++){
+      if(!dataStore.isDirty(page)) continue;
+      int last = Math.min(firstKey + (page+1)*TxnDataStore.PAGE_KEYS, firstKey + size);
+      for(int key=firstKey + page*TxnDataStore.PAGE_KEYS; key<last; key++){
+        int o = HEADER + (key - firstKey)*KEY_BYTES;
+        buffer.putInt(o, dataStore.getVersion(key));
+        buffer.putInt(o + 4, dataStore.getValue(key));
+      }
+      dataStore.clean(page);
+      copied++;
+    }
+    return copied;
+  }
+
+  // make the copied pages durable, then publish the log position (in background)
+  public CompletableFuture<Void> publish(long logPosition){
+    return CompletableFuture.runAsync(() -> {
+      buffer.force();
+      buffer.putLong(0, logPosition);
+      buffer.force();
+    }, writer);
+  }
+
+  // load the last checkpoint in the data store
+  // return the log position from where to replay (0 if there is no checkpoint)
+  public long load(TxnDataStore dataStore){
+    long position = buffer.getLong(0);
+    if(position < 0) return 0;
+    for(int key=firstKey; key<firstKey + size; key++){
+      int o = HEADER + (key - firstKey)*KEY_BYTES;
+      dataStore.apply(key, buffer.getInt(o), buffer.getInt(o + 4));
+    }
+    return position;
+  }
+
+  public void close(){
+    try{
+      channel.close();
+    }catch (IOException e){
+      System.err.println(e);
+    }
+  }
+}
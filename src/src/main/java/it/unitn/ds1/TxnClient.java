@@ -2,14 +2,20 @@ package it.unitn.ds1;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.concurrent.TimeUnit;
 
 import akka.actor.*;
 import scala.concurrent.duration.Duration;
 
+import it.unitn.ds1.TxnLogger.Level;
+import static it.unitn.ds1.TxnLogger.Level.*;
+
 public class TxnClient extends AbstractActor {
   private static final double COMMIT_PROBABILITY = 0.8;
   private static final double WRITE_PROBABILITY = 0.5;
+  private static final double READ_ONLY_PROBABILITY = 0.2;  // only with TxnSystem.mvccEnabled
+  private static final double LOCAL_PROBABILITY = 0.3;      // the TXN uses the keys of a single server (only with TxnSystem.localTxns)
   private static final int MIN_TXN_LENGTH = 20;
   private static final int MAX_TXN_LENGTH = 40;
   private static final int RAND_LENGTH_RANGE = MAX_TXN_LENGTH - MIN_TXN_LENGTH + 1;
@@ -26,13 +32,22 @@ public class TxnClient extends AbstractActor {
 
   // TXN operation (move some amount from a value to another)
   private Boolean acceptedTxn;
+  private Boolean readOnly;   // the TXN only reads, from a snapshot
+  private Integer localKeys;  // first key of the only server used by the TXN (null if any key)
   private ActorRef currentCoordinator;
-  private Integer firstKey, secondKey;
-  private Integer firstValue, secondValue;
+  private Long currentTxn;    // id of the TXN given by the coordinator (null until accepted)
+  private final Map<Integer, Op> inFlight;      // operations waiting for their results, by key (keys are disjoint)
+  private List<Op> plan;                         // all the operations of a TXN declaring its read set up front
+  private Map<Integer, Integer> readSet;         // values of the declared read set (null until read)
   private Integer numOpTotal;
+  private Integer numOpStarted;
   private Integer numOpDone;
   private Cancellable acceptTimeout;
+  private Cancellable progressTimeout;
+  private final Map<ActorRef, Integer> load;    // last load known of every coordinator
+  private int busyReplies;
   private final Random r;
+  private final TxnTrace trace;   // binary trace of the events
 
   /*-- Actor constructor ---------------------------------------------------- */
 
@@ -42,6 +57,9 @@ public class TxnClient extends AbstractActor {
     this.numCommittedTxn = 0;
     this.r = new Random();
     this.r.setSeed(TxnSystem.seed*(clientId+1));
+    this.inFlight = new HashMap<>();
+    this.load = new HashMap<>();
+    this.trace = TxnTrace.open("txnClient" + clientId, clientId);
   }
 
   static public Props props(int clientId) {
@@ -63,20 +81,47 @@ public class TxnClient extends AbstractActor {
   // stop the client
   public static class StopMsg implements Serializable {}
 
-  // reply from the coordinator receiving TxnBeginMsg
-  public static class TxnAcceptMsg implements Serializable {}
+  // reply from the coordinator receiving TxnBeginMsg, with the id of the TXN
+  // the coordinator replies to the client with its load (TXNs active and waiting to begin)
+  public static class TxnAcceptMsg implements Serializable {
+    public final Long txn;
+    public final Integer load;
+    public TxnAcceptMsg(long txn, int load) {
+      this.txn = txn;
+      this.load = load;
+    }
+  }
+
+  // reply from a coordinator too loaded to begin the TXN, the client tries another one
+  public static class TxnBusyMsg implements Serializable {
+    public final Integer load;
+    public TxnBusyMsg(int load) {
+      this.load = load;
+    }
+  }
 
   // message the client sends to a coordinator to begin the TXN
+  // a read-only TXN reads from a snapshot and is never validated
   public static class TxnBeginMsg implements Serializable {
     public final Integer clientId;
-    public TxnBeginMsg(int clientId) {
+    public final Boolean readOnly;
+    public TxnBeginMsg(int clientId, boolean readOnly) {
       this.clientId = clientId;
+      this.readOnly = readOnly;
     }
   }
 
   // the client may timeout waiting for TXN begin confirmation (TxnAcceptMsg)
   public static class TxnAcceptTimeoutMsg implements Serializable {}
 
+  // the client may timeout waiting for the results of the TXN (numAttempted tells the TXN)
+  public static class TxnProgressTimeoutMsg implements Serializable {
+    public final Integer attempt;
+    public TxnProgressTimeoutMsg(int attempt) {
+      this.attempt = attempt;
+    }
+  }
+
   // message the client sends to a coordinator to end the TXN;
   // it may ask for commit (with probability COMMIT_PROBABILITY), or abort
   public static class TxnEndMsg implements Serializable {
@@ -110,6 +155,41 @@ public class TxnClient extends AbstractActor {
     }
   }
 
+  // TRANSFER request from the client to the coordinator:
+  // the servers take some amount from the value of the first key and add it to the second
+  public static class TransferMsg implements Serializable {
+    public final Integer clientId;
+    public final Integer fromKey; // the key to take the amount from
+    public final Integer toKey; // the key to add the amount to
+    public TransferMsg(int clientId, int fromKey, int toKey) {
+      this.clientId = clientId;
+      this.fromKey = fromKey;
+      this.toKey = toKey;
+    }
+  }
+
+  // reply from the coordinator when a TRANSFER has been done
+  public static class TransferResultMsg implements Serializable {
+    public final Integer fromKey;
+    public final Integer toKey;
+    public final Integer amount; // the amount moved by the servers
+    public TransferResultMsg(int fromKey, int toKey, int amount) {
+      this.fromKey = fromKey;
+      this.toKey = toKey;
+      this.amount = amount;
+    }
+  }
+
+  // READ request for all the keys the TXN will use, declared up front
+  public static class ReadSetMsg implements Serializable {
+    public final Integer clientId;
+    public final List<Integer> keys;
+    public ReadSetMsg(int clientId, List<Integer> keys) {
+      this.clientId = clientId;
+      this.keys = Collections.unmodifiableList(new ArrayList<>(keys));
+    }
+  }
+
   // reply from the coordinator when requested a READ on a given key
   public static class ReadResultMsg implements Serializable {
     public final Integer key; // the key associated to the requested item
@@ -121,16 +201,35 @@ public class TxnClient extends AbstractActor {
   }
 
   // message from the coordinator to the client with the outcome of the TXN
+  // a coordinator may send it again after a crash, the TXN id tells the duplicates
   public static class TxnResultMsg implements Serializable {
     public final Boolean commit; // if false, the transaction was aborted
-    public TxnResultMsg(boolean commit) {
+    public final Long txn;
+    public final Integer load;
+    public TxnResultMsg(boolean commit, long txn, int load) {
       this.commit = commit;
+      this.txn = txn;
+      this.load = load;
+    }
+  }
+
+  // an operation on two keys (move some amount from the value of the first to the second)
+  private static class Op {
+    final int number;
+    final int firstKey, secondKey;
+    final boolean transfer;   // done by the servers
+    Integer firstValue, secondValue;
+    Op(int number, int firstKey, int secondKey, boolean transfer) {
+      this.number = number;
+      this.firstKey = firstKey;
+      this.secondKey = secondKey;
+      this.transfer = transfer;
     }
   }
 
   /*-- Actor methods -------------------------------------------------------- */
 
-  // start a new TXN: choose a random coordinator, send TxnBeginMsg and set timeout
+  // start a new TXN: choose a coordinator, send TxnBeginMsg and set timeout
   void beginTxn() {
 
     // some delay between transactions from the same client
@@ -138,16 +237,30 @@ public class TxnClient extends AbstractActor {
     catch (InterruptedException e) { e.printStackTrace(); }
 
     acceptedTxn = false;
+    currentTxn = null;
     numAttemptedTxn++;
+    readOnly = TxnSystem.mvccEnabled && r.nextDouble() < READ_ONLY_PROBABILITY;
+    localKeys = TxnSystem.localTxns && r.nextDouble() < LOCAL_PROBABILITY ? 10*r.nextInt((maxKey + 1)/10) : null;
 
-    // contact a random coordinator and begin TXN
-    currentCoordinator = coordinators.get(r.nextInt(coordinators.size()));
-    currentCoordinator.tell(new TxnBeginMsg(clientId), getSelf());
+    contactCoordinator();
 
     // how many operations (taking some amount and adding it somewhere else)?
     int numExtraOp = RAND_LENGTH_RANGE > 0 ? r.nextInt(RAND_LENGTH_RANGE) : 0;
     numOpTotal = MIN_TXN_LENGTH + numExtraOp;
+    numOpStarted = 0;
     numOpDone = 0;
+    inFlight.clear();
+    plan = null;
+    readSet = null;
+    trace.begin();
+    print(() -> "CLIENT " + clientId + " BEGIN", Check);
+  }
+
+  // send TxnBeginMsg to a coordinator and set the timeout for its confirmation
+  void contactCoordinator() {
+    currentCoordinator = chooseCoordinator();
+    load.merge(currentCoordinator, 1, Integer::sum);   // count ourselves until it replies
+    send(new TxnBeginMsg(clientId, readOnly));
 
     // timeout for confirmation of TXN by the coordinator (sent to self)
     acceptTimeout = getContext().system().scheduler().scheduleOnce(
@@ -156,111 +269,271 @@ public class TxnClient extends AbstractActor {
             new TxnAcceptTimeoutMsg(), // message sent to myself
             getContext().system().dispatcher(), getSelf()
     );
-    System.out.println("CLIENT " + clientId + " BEGIN");
+  }
+
+  // the coordinator is still driving the TXN: restart the timeout
+  // without news for long, the coordinator may have forgotten the TXN (with the log, a crash loses it)
+  void progress() {
+    if(progressTimeout != null) progressTimeout.cancel();
+    progressTimeout = getContext().system().scheduler().scheduleOnce(
+            Duration.create(3*TxnSystem.N_SERVERS*TxnSystem.processTime, TimeUnit.MILLISECONDS),
+            getSelf(),
+            new TxnProgressTimeoutMsg(numAttemptedTxn), // message sent to myself
+            getContext().system().dispatcher(), getSelf()
+    );
+  }
+
+  // the message is built only if its level is enabled (BEGIN, END, COMMIT and TIMEOUT are read by the checker)
+  private void print(Supplier<String> log, Level level) {
+    TxnLogger.log(level, log);
+  }
+
+  // send a request to the current coordinator (encoded as between JVMs, see TxnSerializer)
+  void send(Object msg) {
+    send(msg, currentCoordinator);
+  }
+
+  void send(Object msg, ActorRef coordinator) {
+    coordinator.tell(TxnSerializer.overTheWire(getContext().system(), msg), getSelf());
+  }
+
+  // power of two choices: the least loaded of two random coordinators
+  // (the loads are the ones last replied, so every client spreads on its own knowledge)
+  ActorRef chooseCoordinator() {
+    ActorRef first = coordinators.get(r.nextInt(coordinators.size()));
+    if(!TxnSystem.twoChoices || coordinators.size() == 1) return first;
+    ActorRef second = coordinators.get((coordinators.indexOf(first) + 1 + r.nextInt(coordinators.size() - 1)) % coordinators.size());
+    return load.getOrDefault(second, 0) < load.getOrDefault(first, 0) ? second : first;
   }
 
   // end the current TXN sending TxnEndMsg to the coordinator
   void endTxn() {
     boolean doCommit = r.nextDouble() < COMMIT_PROBABILITY;
-    currentCoordinator.tell(new TxnEndMsg(clientId, doCommit), getSelf());
-    firstValue = null;
-    secondValue = null;
+    send(new TxnEndMsg(clientId, doCommit));
+    inFlight.clear();
+    trace.end(doCommit);
     
-    if(doCommit) System.out.println("CLIENT " + clientId + " END COMMIT");
-    else System.out.println("CLIENT " + clientId + " END ABORT");
+    if(doCommit) print(() -> "CLIENT " + clientId + " END COMMIT", Check);
+    else print(() -> "CLIENT " + clientId + " END ABORT", Check);
   }
 
-  // READ two items (will move some amount from the value of the first to the second)
-  void readTwo() {
+  // choose two different keys, not used by the operations in flight
+  // (a write must not depend on a read overtaken by another operation)
+  private Op newOp(boolean transfer) {
+    int firstKey, secondKey;
+    do {
+      if(localKeys != null){  // every server is in charge of 10 keys
+        firstKey = r.nextInt(10);
+        secondKey = (firstKey + 1 + r.nextInt(9)) % 10;
+        firstKey += localKeys;
+        secondKey += localKeys;
+        continue;
+      }
+      firstKey = r.nextInt(maxKey + 1);
+      int randKeyOffset = 1 + r.nextInt(maxKey - 1);
+      secondKey = (firstKey + randKeyOffset) % (maxKey + 1);
+    } while(inFlight.containsKey(firstKey) || inFlight.containsKey(secondKey));
+    return new Op(numOpStarted++, firstKey, secondKey, transfer);
+  }
 
-    // read two different keys 
-    firstKey = r.nextInt(maxKey + 1);
-    int randKeyOffset = 1 + r.nextInt(maxKey - 1);
-    secondKey = (firstKey + randKeyOffset) % (maxKey + 1);
+  // keep up to TxnSystem.pipelineDepth operations in flight
+  // without transfers every operation reads two items and then may write them (readTwo, writeTwo);
+  // with transfers the choice to write is taken before, the servers do the reads
+  void nextOps() {
+    while(inFlight.size()/2 < TxnSystem.pipelineDepth && numOpStarted < numOpTotal){
+      boolean transfer = TxnSystem.transferEnabled && !readOnly && r.nextDouble() < WRITE_PROBABILITY;
+      Op op = newOp(transfer);
+      inFlight.put(op.firstKey, op);
+      inFlight.put(op.secondKey, op);
+      if(op.transfer) transfer(op);
+      else readTwo(op);
+    }
+  }
+
+  // the operation got its results: start the next ones or end the TXN
+  private void opDone(Op op) {
+    inFlight.remove(op.firstKey);
+    inFlight.remove(op.secondKey);
+    numOpDone++;
+    if(numOpDone >= numOpTotal) {
+      endTxn();
+    }
+    else {
+      nextOps();
+    }
+  }
+
+  // READ two items (will move some amount from the value of the first to the second)
+  void readTwo(Op op) {
 
     // READ requests
-    currentCoordinator.tell(new ReadMsg(clientId, firstKey), getSelf());
-    currentCoordinator.tell(new ReadMsg(clientId, secondKey), getSelf());
+    send(new ReadMsg(clientId, op.firstKey));
+    send(new ReadMsg(clientId, op.secondKey));
 
-    // delete the current read values
-    firstValue = null;
-    secondValue = null;
+    print(() -> "CLIENT " + clientId + " READ #"+ op.number + " (" + op.firstKey + "), (" + op.secondKey + ")", Verbose);
+  }
 
-    System.out.println("CLIENT " + clientId + " READ #"+ numOpDone + " (" + firstKey + "), (" + secondKey + ")");
+  // move some amount from the first item to the second, the servers read and write the values
+  void transfer(Op op) {
+    send(new TransferMsg(clientId, op.firstKey, op.secondKey));
+    print(() -> "CLIENT " + clientId + " TRANSFER #"+ op.number + " (" + op.firstKey + ") -> (" + op.secondKey + ")", Verbose);
   }
 
   // WRITE two items (called with probability WRITE_PROBABILITY after readTwo() values are returned)
-  void writeTwo() {
+  // return the amount taken
+  int writeTwo(Op op) {
 
     // take some amount from one value and pass it to the other, then request writes
-    Integer amountTaken = 0;
-    if(firstValue >= 1) amountTaken = 1 + r.nextInt(firstValue);
-    currentCoordinator.tell(new WriteMsg(clientId, firstKey, firstValue - amountTaken), getSelf());
-    currentCoordinator.tell(new WriteMsg(clientId, secondKey, secondValue + amountTaken), getSelf());
-    System.out.println("CLIENT " + clientId + " WRITE #"+ numOpDone
+    int amountTaken = op.firstValue >= 1 ? 1 + r.nextInt(op.firstValue) : 0;
+    send(new WriteMsg(clientId, op.firstKey, op.firstValue - amountTaken));
+    send(new WriteMsg(clientId, op.secondKey, op.secondValue + amountTaken));
+    print(() -> "CLIENT " + clientId + " WRITE #"+ op.number
             + " taken " + amountTaken
-            + " (" + firstKey + ", " + (firstValue - amountTaken) + "), ("
-            + secondKey + ", " + (secondValue + amountTaken) + ")");
+            + " (" + op.firstKey + ", " + (op.firstValue - amountTaken) + "), ("
+            + op.secondKey + ", " + (op.secondValue + amountTaken) + ")", Verbose);
+    return amountTaken;
+  }
+
+  // choose all the operations of the TXN and read all their keys at once
+  // the coordinator sends the reads to the servers in parallel
+  void readSetUpFront() {
+    plan = new ArrayList<>();
+    readSet = new HashMap<>();
+    while(numOpStarted < numOpTotal){
+      Op op = newOp(false);
+      plan.add(op);
+      readSet.put(op.firstKey, null);
+      readSet.put(op.secondKey, null);
+    }
+    List<Integer> keys = new ArrayList<>(readSet.keySet());
+    send(new ReadSetMsg(clientId, keys));
+    print(() -> "CLIENT " + clientId + " READ SET " + keys, Verbose);
+  }
+
+  // all the declared keys were read: do the operations on the values read,
+  // the writes of an operation are seen by the following ones
+  void writePlan() {
+    for(Op op : plan){
+      op.firstValue = readSet.get(op.firstKey);
+      op.secondValue = readSet.get(op.secondKey);
+      if(!readOnly && r.nextDouble() < WRITE_PROBABILITY){
+        int amountTaken = writeTwo(op);
+        readSet.put(op.firstKey, op.firstValue - amountTaken);
+        readSet.put(op.secondKey, op.secondValue + amountTaken);
+      }
+    }
   }
 
   /*-- Message handlers ----------------------------------------------------- */
 
   private void onWelcomeClientMsg(WelcomeClientMsg msg) {
-    System.out.println("CLIENT "+clientId+" Received Welcome");
+    print(() -> "CLIENT "+clientId+" Received Welcome", Verbose);
     this.coordinators = msg.coordinators;
     this.maxKey = msg.maxKey;
     beginTxn();
   }
 
   private void onStopMsg(StopMsg msg) {
+    print(() -> "CLIENT " + clientId + " BUSY " + busyReplies + " replies", Verbose);
+    print(() -> "CLIENT " + clientId + " TRACE " + trace.stats(), Verbose);
     getContext().stop(getSelf());
   }
 
   private void onTxnAcceptMsg(TxnAcceptMsg msg) {
-    if(!getSender().equals(currentCoordinator)){return;}
-    System.out.println("CLIENT " + clientId + " Received txnAccepted");
+    load.put(getSender(), msg.load);
+    if(!getSender().equals(currentCoordinator)){   // given up after the accept timeout: abort it, it would keep the slot
+      send(new TxnEndMsg(clientId, false), getSender());
+      return;
+    }
+    if(acceptedTxn){return;}
+    print(() -> "CLIENT " + clientId + " Received txnAccepted", Verbose);
     acceptedTxn = true;
+    currentTxn = msg.txn;
+    acceptTimeout.cancel();
+    progress();
+    if(TxnSystem.declareReadSet) readSetUpFront();
+    else nextOps();
+  }
+
+  // the coordinator is too loaded, begin the same TXN on another one
+  private void onTxnBusyMsg(TxnBusyMsg msg) {
+    load.put(getSender(), msg.load);
+    if(!getSender().equals(currentCoordinator) || acceptedTxn){return;}
+    print(() -> "CLIENT " + clientId + " Received txnBusy (load " + msg.load + ")", Verbose);
+    busyReplies++;
     acceptTimeout.cancel();
-    readTwo();
+    contactCoordinator();
   }
 
   private void onTxnAcceptTimeoutMsg(TxnAcceptTimeoutMsg msg) throws InterruptedException {
-    System.out.println("CLIENT " + clientId + " TIMEOUT");
+    print(() -> "CLIENT " + clientId + " TIMEOUT", Check);
     if(!acceptedTxn) beginTxn();
   }
 
+  // the coordinator did not answer for too long, it may have forgotten the TXN: begin a new one
+  private void onTxnProgressTimeoutMsg(TxnProgressTimeoutMsg msg) throws InterruptedException {
+    if(msg.attempt != numAttemptedTxn || currentTxn == null) return;
+    print(() -> "CLIENT " + clientId + " TIMEOUT on TXN results", Check);
+    beginTxn();
+  }
+
   private void onReadResultMsg(ReadResultMsg msg) {
-    System.out.println("CLIENT " + clientId + " READ RESULT (" + msg.key + ", " + msg.value + ")");
+    progress();
+    print(() -> "CLIENT " + clientId + " READ RESULT (" + msg.key + ", " + msg.value + ")", Verbose);
+
+    if(readSet != null){    // the read set was declared, write once all the keys are read
+      if(!readSet.containsKey(msg.key)) return;
+      readSet.put(msg.key, msg.value);
+      if(!readSet.containsValue(null)){
+        writePlan();
+        endTxn();
+      }
+      return;
+    }
+
+    Op op = inFlight.get(msg.key);
+    if(op == null || op.transfer) return;  // late result of an older txn
     
     // save the read value(s)
-    if(msg.key.equals(firstKey)) firstValue = msg.value;
-    if(msg.key.equals(secondKey)) secondValue = msg.value;
+    if(msg.key.equals(op.firstKey)) op.firstValue = msg.value;
+    if(msg.key.equals(op.secondKey)) op.secondValue = msg.value;
 
-    boolean opDone = (firstValue != null && secondValue != null);
+    if(op.firstValue == null || op.secondValue == null) return;
 
-    // do we only read or also write?
-    double writeRandom = r.nextDouble();
-    boolean doWrite = writeRandom < WRITE_PROBABILITY;
-    if(doWrite && opDone) writeTwo();
+    // do we only read or also write? (with transfers the choice was already taken: only read)
+    if(!TxnSystem.transferEnabled){
+      double writeRandom = r.nextDouble();
+      boolean doWrite = writeRandom < WRITE_PROBABILITY;
+      if(doWrite && !readOnly) writeTwo(op);
+    }
     
     // check if the transaction should end;
-    // otherwise, read two again
-    if(opDone) numOpDone++;
-    if(numOpDone >= numOpTotal) {
-      endTxn();
-    }
-    else if(opDone) {
-      readTwo();
-    }
+    // otherwise, do other operations
+    opDone(op);
+  }
+
+  private void onTransferResultMsg(TransferResultMsg msg) {
+    Op op = inFlight.get(msg.fromKey);
+    if(op == null || !op.transfer || op.secondKey != msg.toKey) return;  // late result of an older txn
+    progress();
+    print(() -> "CLIENT " + clientId + " TRANSFER RESULT taken " + msg.amount + " (" + msg.fromKey + ") -> (" + msg.toKey + ")", Verbose);
+
+    opDone(op);
   }
 
   private void onTxnResultMsg(TxnResultMsg msg) throws InterruptedException {
+    load.put(getSender(), msg.load);
+    if(!msg.txn.equals(currentTxn)) return;   // outcome of a TXN already over
+    currentTxn = null;
+    progressTimeout.cancel();
+    TxnSystem.finishedTxns.increment();
+    trace.result(msg.txn, msg.commit);
     if(msg.commit) {
       numCommittedTxn++;
-      System.out.println("CLIENT " + clientId + " COMMIT OK ("+numCommittedTxn+"/"+numAttemptedTxn+")");
+      print(() -> "CLIENT " + clientId + " COMMIT OK ("+numCommittedTxn+"/"+numAttemptedTxn+")", Check);
     }
     else {
-      System.out.println("CLIENT " + clientId + " COMMIT FAIL ("+(numAttemptedTxn - numCommittedTxn)+"/"+numAttemptedTxn+")");
+      print(() -> "CLIENT " + clientId + " COMMIT FAIL ("+(numAttemptedTxn - numCommittedTxn)+"/"+numAttemptedTxn+")", Check);
     }
     beginTxn();
 
@@ -271,8 +544,11 @@ public class TxnClient extends AbstractActor {
     return receiveBuilder()
             .match(WelcomeClientMsg.class,  this::onWelcomeClientMsg)
             .match(TxnAcceptMsg.class,  this::onTxnAcceptMsg)
+            .match(TxnBusyMsg.class,  this::onTxnBusyMsg)
             .match(TxnAcceptTimeoutMsg.class,  this::onTxnAcceptTimeoutMsg)
+            .match(TxnProgressTimeoutMsg.class,  this::onTxnProgressTimeoutMsg)
             .match(ReadResultMsg.class,  this::onReadResultMsg)
+            .match(TransferResultMsg.class,  this::onTransferResultMsg)
             .match(TxnResultMsg.class,  this::onTxnResultMsg)
             .match(StopMsg.class,  this::onStopMsg)
             .build();
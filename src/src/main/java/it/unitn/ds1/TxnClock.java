@@ -0,0 +1,23 @@
+package it.unitn.ds1;
+
+// hybrid logical clock of an actor (ms)
+// follows the physical time but never goes back,
+// and always moves past the timestamps received from the others
+public class TxnClock {
+  private long time;
+
+  // timestamp of a new local event
+  public long tick(){
+    time = Math.max(time + 1, System.currentTimeMillis());
+    return time;
+  }
+
+  // a timestamp received in a message
+  public void observe(long timestamp){
+    time = Math.max(time, timestamp);
+  }
+
+  public long now(){
+    return Math.max(time, System.currentTimeMillis());
+  }
+}
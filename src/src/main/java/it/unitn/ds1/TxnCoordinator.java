@@ -1,7 +1,9 @@
 package it.unitn.ds1;
 
 import java.io.*;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.concurrent.TimeUnit;
 
 import akka.actor.*;
@@ -9,34 +11,80 @@ import scala.concurrent.duration.Duration;
 
 import it.unitn.ds1.TxnClient.TxnBeginMsg;
 import it.unitn.ds1.TxnClient.TxnAcceptMsg;
+import it.unitn.ds1.TxnClient.TxnBusyMsg;
 import it.unitn.ds1.TxnClient.ReadMsg;
+import it.unitn.ds1.TxnClient.ReadSetMsg;
 import it.unitn.ds1.TxnClient.ReadResultMsg;
 import it.unitn.ds1.TxnClient.WriteMsg;
+import it.unitn.ds1.TxnClient.TransferMsg;
+import it.unitn.ds1.TxnClient.TransferResultMsg;
 import it.unitn.ds1.TxnClient.TxnEndMsg;
 import it.unitn.ds1.TxnClient.TxnResultMsg;
 
 import it.unitn.ds1.TxnServer.FwdReadResultMsg;
+import it.unitn.ds1.TxnServer.FwdTransferResultMsg;
+import it.unitn.ds1.TxnServer.ResultBatchMsg;
 import it.unitn.ds1.TxnServer.ServerDecisionMsg;
 import it.unitn.ds1.TxnServer.FwdParticipantsDecisionMsg;
 import it.unitn.ds1.TxnServer.ParticipantsDecisionMsg;
+import it.unitn.ds1.TxnServer.ParticipantsDecisionBatchMsg;
+import it.unitn.ds1.TxnServer.FwdParticipantsDecisionBatchMsg;
+import it.unitn.ds1.TxnServer.DecisionAckMsg;
+import it.unitn.ds1.TxnServer.OnePhaseResultMsg;
+import it.unitn.ds1.TxnServer.LogSyncMsg;
 
 import it.unitn.ds1.TxnSystem.CrashCoordMsg;
 import it.unitn.ds1.TxnSystem.RecoveryMsg;
 
+import it.unitn.ds1.TxnNetwork.SendMsg;
+
+import it.unitn.ds1.TxnTimers.Phase;
+import it.unitn.ds1.TxnTimers.TickMsg;
+
+import it.unitn.ds1.TxnLogger.Level;
+import static it.unitn.ds1.TxnLogger.Level.*;
+
 
 public class TxnCoordinator extends AbstractActor {
   private final Integer coordinatorId;
   private final List<ActorRef> servers;
   private int globID;
+  private int epoch;                                                // incarnation of the coordinator, increased at every recovery
   private final Map<ActorRef,TxnId> txnBind;                        // binds the transaction with client
+  private final Map<ActorRef,WaitingBegin> waitingBegins;           // clients waiting for a free slot to begin (admission control)
+  private long queuedBegins, busyReplies;                           // statistics of the admission control
   private final Map<TxnId,Set<ActorRef>> OngoingTxn;                // binds the transaction with all the servers contacted
   private final Map<TxnId,List<Boolean>> ServerDecisions;           // store the commit votes of the servers
-  private final Map<TxnId,Boolean> txnHistory;                      // store the final commit decision
-  private final Map<TxnId,Map<Integer,Cancellable>> readTimeout;    // contain a timeout for every transaction waiting for reads
-  private final Map<TxnId,Cancellable> voteTimeout;                 // contain a timeout for every transaction waiting for server votes
+  private final TxnHistory txnHistory;                              // store the final commit decision
+  private final Map<TxnId,Set<ActorRef>> pendingAcks;               // servers that still have to apply the final decision
+  private final TreeSet<Integer> unfinished;                        // ids of the transactions not yet applied by all the servers
+  private final TxnClock clock;
+  private final Map<TxnId,Long> snapshots;                          // snapshot timestamp of the read-only transactions
+  private final Map<TxnId,Long> commitTimestamp;                    // highest timestamp among the YES votes
+  private final Map<TxnId,Map<ActorRef,Set<Integer>>> writtenKeys;  // keys written by every transaction on every server
+  private final TxnTimers timers;                                   // timeouts of the transactions (reads, votes, acks)
+  private final TxnTimeouts timeouts;                               // response times of the servers, and how long to wait for them
+  private final Cancellable timerTick;
+  private final Map<TxnId,Integer> pendingReads;                    // reads (and transfers) waiting for their result
   private final Map<TxnId, String> txnState;                        // follow the steps of a transaction (not decided, decided)
+  private final Map<TxnId,Integer> onePhase;                        // transactions whose decision is left to their only server (its writes)
+  private final TxnTrace trace;                                     // binary trace of the events
+  private final TxnDecisionLog log;                                 // decisions made durable before they are sent (null if not durable)
+  private final Map<TxnId,Set<ActorRef>> pendingDecisions;          // decisions logged, sent to these servers once durable
+  private final Map<TxnId,Set<ActorRef>> pendingPrepares;           // presumed commit: votes asked to these participants once durable
+  private final Map<TxnId,ActorRef> pendingOnePhase;                // one-phase outcomes asked to these servers once durable
+  private boolean syncScheduled;
+  private int idLimit;                                              // txn ids reserved in the log (synced)
+  private int idReserved;                                           // txn ids reserved in the log, durable at the next sync
+  private final Set<TxnId> recovering;                              // txns taken back from the log, not yet applied everywhere
+  private long recoveryStart;                                       // ns
+  private long recoveries, recoveryTime, maxRecoveryTime;           // statistics of the recoveries (ms)
 
   private final Random r;
+  private final ActorRef network;                                   // simulated network link used by sendReal
+  private final Map<ActorRef,List<Object>> outbox;                  // operations waiting to be sent to every server in a batch
+  private boolean flushScheduled;
+  private long batchedOps, batches;                                 // statistics of the batches sent
 
   enum CrashCoordType {  // type of the next simulated crash
     NONE,
@@ -53,15 +101,62 @@ public class TxnCoordinator extends AbstractActor {
     this.servers = new ArrayList<>();
     this.globID = 0;
     this.txnBind = new HashMap<>(); 
-    this.OngoingTxn = new HashMap<>(); 
-    this.ServerDecisions = new HashMap<>();
-    this.txnHistory = new HashMap<>();
-    this.readTimeout = new HashMap<>();
-    this.voteTimeout = new HashMap<>();
-    this.txnState = new HashMap<>();
+    this.waitingBegins = new LinkedHashMap<>();
+    this.OngoingTxn = new TxnMap<>(); 
+    this.ServerDecisions = new TxnMap<>();
+    this.txnHistory = new TxnHistory();
+    this.pendingAcks = new TxnMap<>();
+    this.unfinished = new TreeSet<>();
+    this.clock = new TxnClock();
+    this.snapshots = new TxnMap<>();
+    this.commitTimestamp = new TxnMap<>();
+    this.writtenKeys = new TxnMap<>();
+    this.timers = new TxnTimers(TxnSystem.timerTick, 512);
+    this.timeouts = new TxnTimeouts();
+    this.pendingReads = new TxnMap<>();
+    this.txnState = new TxnMap<>();
+    this.onePhase = new TxnMap<>();
+    this.trace = TxnTrace.open("txnCoordinator" + coordinatorId);
+    this.log = TxnSystem.walEnabled ? new TxnDecisionLog(Paths.get(TxnSystem.walDir, "txnCoordinator" + coordinatorId + ".log")) : null;
+    this.pendingDecisions = new TxnMap<>();
+    this.pendingPrepares = new TxnMap<>();
+    this.pendingOnePhase = new TxnMap<>();
+    this.syncScheduled = false;
+    this.idLimit = this.idReserved = 0;
+    if(log != null){   // the first block, durable before any begin
+      idLimit = idReserved = TxnSystem.idBlock;
+      log.logIds(idLimit);
+      log.sync();
+    }
+    this.recovering = new HashSet<>();
     this.r = new Random();
     this.r.setSeed(TxnSystem.seed*(coordinatorId+1));
+    this.network = getContext().actorOf(TxnNetwork.props().withDispatcher(getContext().getProps().dispatcher()), "network");  // on the dispatcher of the node
+    this.outbox = new HashMap<>();
+    this.flushScheduled = false;
     this.nextCrash = CrashCoordType.NONE;
+    this.timerTick = getContext().system().scheduler().scheduleWithFixedDelay(
+            Duration.create(TxnSystem.timerTick, TimeUnit.MILLISECONDS),
+            Duration.create(TxnSystem.timerTick, TimeUnit.MILLISECONDS),
+            getSelf(),
+            new TickMsg(), // message sent to myself
+            getContext().system().dispatcher(), getSelf()
+    );
+  }
+
+  @Override
+  public void postStop() {
+    timerTick.cancel();
+    printLog(() -> "\t" + "COORDI " + coordinatorId + " BATCH " + batchedOps + " operations in " + batches + " messages", Verbose);
+    printLog(() -> "\t" + "COORDI " + coordinatorId + " ADMISSION " + queuedBegins + " begins queued, " + busyReplies + " busy replies", Verbose);
+    printLog(() -> "\t" + "COORDI " + coordinatorId + " TIMEOUTS " + timeouts.stats(), Verbose);
+    printLog(() -> "\t" + "COORDI " + coordinatorId + " TRACE " + trace.stats(), Verbose);
+    if(log != null){
+      printLog(() -> "\t" + "COORDI " + coordinatorId + " LOG " + log.stats(), Verbose);
+      printLog(() -> "\t" + "COORDI " + coordinatorId + " RECOVERY " + recoveries + " recoveries, time avg "
+               + (recoveries == 0 ? 0 : recoveryTime/recoveries) + " ms max " + maxRecoveryTime + " ms", Verbose);
+      log.close();
+    }
   }
 
   static public Props props(int coordinatorId) {
@@ -83,9 +178,11 @@ public class TxnCoordinator extends AbstractActor {
   public static class FwdReadMsg implements Serializable {
     public final Integer key; // the key of the value to read
     public final TxnId txn;
-    public FwdReadMsg(int key, TxnId txn) {
+    public final long snapshot; // snapshot timestamp of a read-only txn, 0 otherwise
+    public FwdReadMsg(int key, TxnId txn, long snapshot) {
       this.key = key;
       this.txn = txn;
+      this.snapshot = snapshot;
     }
   }
 
@@ -101,33 +198,78 @@ public class TxnCoordinator extends AbstractActor {
     }
   }
 
+  // TRANSFER request from the coordinator to the server of the first key
+  // it takes the amount and passes it to the server of the second key
+  public static class FwdTransferMsg implements Serializable {
+    public final Integer fromKey;
+    public final Integer toKey;
+    public final ActorRef toServer; // the server in charge of toKey
+    public final TxnId txn;
+    public FwdTransferMsg(int fromKey, int toKey, ActorRef toServer, TxnId txn) {
+      this.fromKey = fromKey;
+      this.toKey = toKey;
+      this.toServer = toServer;
+      this.txn = txn;
+    }
+  }
+
+  // operations of one or more txns for the same server, in the order they were forwarded
+  public static class OpBatchMsg implements Serializable {
+    public final List<Object> ops;
+    public OpBatchMsg(List<Object> ops) {
+      this.ops = Collections.unmodifiableList(new ArrayList<>(ops));
+    }
+  }
+
+  // send the operations waiting in the outbox
+  public static class BatchFlushMsg implements Serializable {}
+
   // COMMIT request from the coordinator to the server
+  // with the number of keys the server must have written (a write lost in a crash can't commit),
+  // a server without writes votes READ_ONLY and is not a participant of the second phase
   public static class CanCommitMsg implements Serializable {
     public final TxnId txn;
     public final Set<ActorRef> participants;
-    public CanCommitMsg(TxnId txn, Set<ActorRef> participants) {
+    public final int writes;
+    public CanCommitMsg(TxnId txn, Set<ActorRef> participants, int writes) {
       this.txn = txn;
       this.participants = participants;
+      this.writes = writes;
+    }
+  }
+
+  // COMMIT request to the only server of the transaction:
+  // it validates and applies the changes at once, then tells the outcome
+  public static class OnePhaseCommitMsg implements Serializable {
+    public final TxnId txn;
+    public final int writes; // number of keys the server must have written
+    public OnePhaseCommitMsg(TxnId txn, int writes) {
+      this.txn = txn;
+      this.writes = writes;
     }
   }
 
   // Send decision (commit/abort) to the server
+  // with the low watermark of the coordinator: every txn with a smaller id is finished everywhere
+  // and the commit timestamp (0 if aborted)
   public static class FinalDecisionMsg implements Serializable {
     public final Boolean decision;
     public final TxnId txn;
-    public FinalDecisionMsg(Boolean decision, TxnId txn) {
+    public final int watermark;
+    public final long timestamp;
+    public FinalDecisionMsg(Boolean decision, TxnId txn, int watermark, long timestamp) {
       this.decision = decision;
       this.txn = txn;
+      this.watermark = watermark;
+      this.timestamp = timestamp;
     }
   }
 
   // the coordinator may timeout waiting for the reads of the servers
   public static class TxnReadTimeoutMsg implements Serializable {
     public final TxnId txn;
-    public final ActorRef server;
-    public TxnReadTimeoutMsg(TxnId txn, ActorRef server) {
+    public TxnReadTimeoutMsg(TxnId txn) {
       this.txn = txn;
-      this.server = server;
     }
   }
 
@@ -139,69 +281,164 @@ public class TxnCoordinator extends AbstractActor {
     }
   }
 
+  // the coordinator may timeout waiting for the servers to apply the decision
+  public static class TxnAckTimeoutMsg implements Serializable {
+    public final TxnId txn;
+    public TxnAckTimeoutMsg(TxnId txn) {
+      this.txn = txn;
+    }
+  }
+
+  // the decisions of many txns for the same server, sent together after a recovery
+  public static class DecisionBatchMsg implements Serializable {
+    public final List<FinalDecisionMsg> decisions;
+    public DecisionBatchMsg(List<FinalDecisionMsg> decisions) {
+      this.decisions = Collections.unmodifiableList(new ArrayList<>(decisions));
+    }
+  }
+
   /*-- TxnId class -------------------------------------------------------- */
 
+  // the transaction is identified by a single long: {coordinator (16 bits), epoch (16 bits), id (32 bits)}
+  // the actors are kept only to send messages, the name only to print logs
   public static class TxnId{
     public final ActorRef client;
     public final ActorRef coordinator;
-    public int id;
-    public int clientId;
-    public int coordId;
-    public String name;
+    public final long key;
+    public final int id;        // sequence number of the txn in its coordinator
+    public final int clientId;
+    private String name;        // rendered the first time it is printed
 
-    public TxnId(ActorRef client, ActorRef coordinator, int id){
+    public TxnId(ActorRef client, ActorRef coordinator, int clientId, int coordId, int epoch, int id){
+      this(client, coordinator, clientId, ((long) (coordId & 0xffff) << 48) | ((long) (epoch & 0xffff) << 32) | (id & 0xffffffffL));
+    }
+
+    public TxnId(ActorRef client, ActorRef coordinator, int clientId, long key){
       this.client = client;
       this.coordinator = coordinator;
-      this.id = id;
-      this.clientId = Integer.parseInt(client.path().name().substring(9));
-      this.coordId = Integer.parseInt(coordinator.path().name().substring(14));
-      this.name = "TxnId@" + coordId + "." + id + "/" + clientId;
+      this.clientId = clientId;
+      this.key = key;
+      this.id = (int) key;
+    }
+
+    public int coordId(){
+      return (int) (key >>> 48);
+    }
+
+    public int epoch(){
+      return (int) (key >>> 32) & 0xffff;
+    }
+
+    public String name(){
+      if(name == null) name = name(key, clientId);
+      return name;
+    }
+
+    public static String name(long key, int clientId){
+      return "TxnId@" + (int) (key >>> 48) + "." + (int) key + "/" + clientId;
     }
 
     @Override
     public boolean equals(Object obj){
       if(this == obj) return true;
       if(obj == null || obj.getClass() != this.getClass()) return false;
-      TxnId txn = (TxnId) obj;
-      return( txn.client.equals(this.client) && txn.coordinator.equals(this.coordinator) && txn.id == this.id );
+      return ((TxnId) obj).key == this.key;
     }
 
     @Override
-    public int hashCode(){ // map 2 int into a single one
-      int a = coordId;
-      int b = id;
-      // Szudzik's function
-      return (a >= b ? a * a + a + b : a + b * b);
+    public int hashCode(){
+      return Long.hashCode(key * 0x9e3779b97f4a7c15L);
+    }
+  }
+
+  // a TxnBeginMsg waiting for a free slot
+  private static class WaitingBegin {
+    final TxnBeginMsg msg;
+    final long since;   // ms
+    WaitingBegin(TxnBeginMsg msg, long since) {
+      this.msg = msg;
+      this.since = since;
     }
   }
 
   /*-- Actor methods -------------------------------------------------------- */
 
+  // load published to the clients: TXNs driven and waiting to begin
+  // (the mailbox is not visible to the actor, the waiting begins are the work queued here)
+  private int load(){
+    return txnBind.size() + waitingBegins.size();
+  }
+
+  private boolean hasFreeSlot(){
+    return TxnSystem.maxActiveTxns == 0 || txnBind.size() < TxnSystem.maxActiveTxns;
+  }
+
+  // the TXN is over, unless the client already began another one
+  private void unbind(TxnId txn){
+    if(txn.equals(txnBind.get(txn.client))) unbind(txn.client);
+  }
+
+  // the TXN of the client is over, its slot goes to the first begin waiting
+  private void unbind(ActorRef client){
+    txnBind.remove(client);
+    Iterator<Map.Entry<ActorRef,WaitingBegin>> it = waitingBegins.entrySet().iterator();
+    while(it.hasNext() && hasFreeSlot()){
+      Map.Entry<ActorRef,WaitingBegin> waiting = it.next();
+      it.remove();
+      begin(waiting.getKey(), waiting.getValue().msg);
+    }
+  }
+
+  // the delay is applied by the network child, so the actor is not blocked meanwhile
+  // the operations still in the outbox of the receiver go first, to keep the order of the link
   private void sendReal(Object msg, ActorRef sender, ActorRef receiver){
-    try{
-      Thread.sleep((int)((r.nextDouble())*(TxnSystem.maxDelay - TxnSystem.minDelay)) + TxnSystem.minDelay);
-    }catch (InterruptedException e){
-      System.err.println(e);
+    if(outbox.containsKey(receiver)) flush(receiver);
+    int delay = (int)((r.nextDouble())*(TxnSystem.maxDelay - TxnSystem.minDelay)) + TxnSystem.minDelay;
+    network.tell(new SendMsg(msg, sender, receiver, delay), getSelf());
+  }
+
+  // forward an operation to a server: it waits in the outbox for the batch window
+  private void sendOp(Object op, ActorRef server){
+    if(TxnSystem.batchWindow == 0){
+      sendReal(op, getSelf(), server);
+      return;
     }
-    receiver.tell(msg, sender);
+    outbox.computeIfAbsent(server, s -> new ArrayList<>()).add(op);
+    if(flushScheduled) return;
+    flushScheduled = true;
+    getContext().system().scheduler().scheduleOnce(
+            Duration.create(TxnSystem.batchWindow, TimeUnit.MILLISECONDS),
+            getSelf(),
+            new BatchFlushMsg(), // message sent to myself
+            getContext().system().dispatcher(), getSelf()
+    );
+  }
+
+  // send the operations in the outbox of the server, in a batch if more than one
+  private void flush(ActorRef server){
+    List<Object> ops = outbox.remove(server);
+    Object msg = ops.size() == 1 ? ops.get(0) : new OpBatchMsg(ops);
+    batchedOps += ops.size();
+    batches++;
+    sendReal(msg, getSelf(), server);
   }
 
   /*---------------------------------------------------------- */
-  private void printLog(String logString, String mode){
-    Set<String> logModeAllowed = new HashSet<>();
-    if(TxnSystem.logMode.equals("Verbose")){
-      logModeAllowed.add("Verbose"); logModeAllowed.add("Termination"); logModeAllowed.add("Crash"); logModeAllowed.add("Check"); 
-    }
-    if(TxnSystem.logMode.equals("Termination")){
-      logModeAllowed.add("Termination"); logModeAllowed.add("Check"); 
-    }
-    if(TxnSystem.logMode.equals("Check")){
-      logModeAllowed.add("Check"); 
-    }
+  // the message is built only if its level is enabled
+  private void printLog(Supplier<String> log, Level level){
+    TxnLogger.log(level, log);
+  }
 
-    if(logModeAllowed.contains(mode)){
-      System.out.println(logString);
-    }
+  // remember a key written by the transaction on the server
+  private void addWrite(TxnId txn, ActorRef server, Integer key){
+    writtenKeys.computeIfAbsent(txn, t -> new HashMap<>()).computeIfAbsent(server, s -> new HashSet<>()).add(key);
+  }
+
+  // number of keys written by the transaction on the server
+  private int writes(TxnId txn, ActorRef server){
+    Map<ActorRef,Set<Integer>> keys = writtenKeys.get(txn);
+    if(keys == null || keys.get(server) == null) return 0;
+    return keys.get(server).size();
   }
 
   // get Server that is in charged of the given key
@@ -210,21 +447,20 @@ public class TxnCoordinator extends AbstractActor {
   }
 
   private String printOngoing(Set<ActorRef> s){
-    String res = "";
+    StringBuilder res = new StringBuilder();
     for(ActorRef i : s){
-      res = res + i.path().name() + " ";
+      res.append(i.path().name()).append(' ');
     }
-    return res;
+    return res.toString();
   }
 
   private String printServerDecisions(List<Boolean> s){
-    String res = "[";
+    StringBuilder res = new StringBuilder("[");
     for(Boolean i : s){
-      if(i) res = res + "True ";
-      else res = res + "False ";
+      if(res.length() > 1) res.append(' ');
+      res.append(i ? "True" : "False");
     }
-    res = res.substring(0,res.length()-1)+"]";
-    return res;
+    return res.append(']').toString();
   }
 
   private Boolean getfinalDecision(List<Boolean> decisions){
@@ -234,46 +470,252 @@ public class TxnCoordinator extends AbstractActor {
     return true;
   }
 
-  //set a decision timeout with delay t for reads 
-  private void setReadTimeout(TxnId txn, ActorRef server, Integer key, int t){
-    Cancellable timeout = getContext().system().scheduler().scheduleOnce(
-            Duration.create(t, TimeUnit.MILLISECONDS),
-            getSelf(),
-            new TxnReadTimeoutMsg(txn,server), // message sent to myself
-            getContext().system().dispatcher(), getSelf()
-    );
-    readTimeout.putIfAbsent(txn, new HashMap<>());
-    readTimeout.get(txn).put(key,timeout);
+  // a read (or a transfer) is sent: the first one starts the read timeout of the txn
+  private void waitRead(TxnId txn, ActorRef server){
+    timeouts.asked(txn, Phase.READ, server);
+    if(pendingReads.merge(txn, 1, Integer::sum) == 1){
+      timers.arm(txn, Phase.READ, timeouts.timeout(txn, Phase.READ), new TxnReadTimeoutMsg(txn));
+    }
   }
 
-  //set a decision timeout with delay t for votes
-  private void setVoteTimeout(TxnId txn, int t){
-    Cancellable timeout = getContext().system().scheduler().scheduleOnce(
-            Duration.create(t, TimeUnit.MILLISECONDS),
+  // a result arrived: stop the timeout when nothing else is pending, otherwise restart it
+  private void readDone(TxnId txn, ActorRef server){
+    Integer pending = pendingReads.get(txn);
+    if(pending == null) return;
+    timeouts.answered(txn, Phase.READ, server);
+    if(pending == 1){
+      endReads(txn);
+      return;
+    }
+    pendingReads.put(txn, pending - 1);
+    timers.arm(txn, Phase.READ, timeouts.timeout(txn, Phase.READ), new TxnReadTimeoutMsg(txn));
+  }
+
+  private void endReads(TxnId txn){
+    pendingReads.remove(txn);
+    timers.cancel(txn, Phase.READ);
+  }
+
+  //set a decision timeout for votes, long enough for the slowest server not voted yet
+  private void setVoteTimeout(TxnId txn){
+    timers.arm(txn, Phase.VOTE, timeouts.timeout(txn, Phase.VOTE), new TxnVoteTimeoutMsg(txn));
+  }
+
+  private void cancelVoteTimeout(TxnId txn){
+    timers.cancel(txn, Phase.VOTE);
+  }
+
+  //set a timeout waiting for the servers to apply the decision
+  private void setAckTimeout(TxnId txn){
+    timers.arm(txn, Phase.ACK, timeouts.timeout(txn, Phase.ACK), new TxnAckTimeoutMsg(txn));
+  }
+
+  // the smallest id not yet finished everywhere (all the txns before it can be forgotten)
+  private int watermark(){
+    return unfinished.isEmpty() ? globID : unfinished.first();
+  }
+
+  // the final decision has been sent to the servers, wait for all of them to apply it
+  // the presumed decision is forgotten at once, the servers don't acknowledge it
+  private void waitAcks(TxnId txn, Set<ActorRef> servers){
+    if(TxnSystem.presumed(txnHistory.get(txn))){
+      txnHistory.remove(txn);
+      finished(txn);
+      return;
+    }
+    if(servers.isEmpty()){
+      finished(txn);
+      return;
+    }
+    pendingAcks.put(txn, new HashSet<>(servers));
+    timeouts.asked(txn, Phase.ACK, servers);
+    setAckTimeout(txn);
+  }
+
+  // every server applied the decision: nobody can ask for it anymore
+  private void finished(TxnId txn){
+    // no server will ask for the decision anymore (ignored at replay if it was never logged)
+    if(log != null && txnHistory.get(txn) != null) log.logEnd(txn);
+    unfinished.remove(txn.id);
+    timeouts.forget(txn);
+    txnHistory.prune(getSelf(), watermark());
+    if(recovering.remove(txn) && recovering.isEmpty()) recovered();
+  }
+
+  // send the decision to the servers and to the client, then wait for the acks
+  // with the log, a decision is sent only once it is durable: it is logged now
+  // and forced together with the others taken meanwhile (see onLogSyncMsg)
+  private void announce(TxnId txn, Set<ActorRef> servers){
+    boolean decision = txnHistory.get(txn);
+    // a presumed abort is never logged, a presumed commit closes the prepare record
+    if(log != null && (!TxnSystem.presumed(decision) || TxnSystem.presumption.equals("Commit"))){
+      log.logDecision(txn, decision, txnHistory.timestamp(txn), servers);
+      pendingDecisions.put(txn, new HashSet<>(servers));
+      scheduleSync();
+      return;
+    }
+    sendDecision(txn, servers);
+  }
+
+  private void sendDecision(TxnId txn, Set<ActorRef> servers){
+    for(ActorRef server : servers){
+      sendReal(new FinalDecisionMsg(txnHistory.get(txn), txn, watermark(), txnHistory.timestamp(txn)), getSelf(), server);
+    }
+    sendResult(txn);
+    waitAcks(txn, servers);
+  }
+
+  // the outcome for the client, with the id of the txn (it drops the outcomes sent again)
+  private void sendResult(TxnId txn){
+    sendReal(new TxnResultMsg(txnHistory.get(txn), txn.key, load()), getSelf(), txn.client);
+  }
+
+  // ask the votes of all the servers of the txn
+  private void askVotes(TxnId txn, Set<ActorRef> participants){
+    timeouts.asked(txn, Phase.VOTE, OngoingTxn.get(txn));
+    for(ActorRef server : OngoingTxn.get(txn)){
+      sendReal(new CanCommitMsg(txn, participants, writes(txn, server)), getSelf(), server); // ask to commit
+    }
+  }
+
+  // schedule a sync of the log if not already scheduled
+  // all the records appended until then are made durable together
+  private void scheduleSync(){
+    if(syncScheduled) return;
+    syncScheduled = true;
+    getContext().system().scheduler().scheduleOnce(
+            Duration.create(TxnSystem.groupCommitTime, TimeUnit.MILLISECONDS),
             getSelf(),
-            new TxnVoteTimeoutMsg(txn), // message sent to myself
+            new LogSyncMsg(), // message sent to myself
             getContext().system().dispatcher(), getSelf()
     );
-    voteTimeout.put(txn, timeout);
   }
 
-  //cancel a certain timeout
-  private void cancelReadTimeout(TxnId txn, ActorRef server, Integer key){
-    if(readTimeout.get(txn).get(key) != null){
-      if(!readTimeout.get(txn).get(key).isCancelled()){
-        readTimeout.get(txn).get(key).cancel();
+  // the txn ids are reserved in blocks, so the ids issued before a crash are never issued again
+  // the next block is logged when half of the current one is used and becomes durable with the
+  // group commit; only a burst using the rest of the block before that sync waits for it here
+  private int nextId(){
+    if(log != null){
+      if(idReserved == idLimit && globID >= idLimit - TxnSystem.idBlock/2){
+        idReserved = Math.max(globID, idLimit) + TxnSystem.idBlock;
+        log.logIds(idReserved);
+        scheduleSync();
+      }
+      if(globID >= idLimit){
+        log.sync();
+        idLimit = idReserved;
       }
     }
+    return globID++;
   }
 
-  private void cancelVoteTimeout(TxnId txn){
-    if(voteTimeout.get(txn) != null) voteTimeout.get(txn).cancel();
+  // rebuild the decisions not applied everywhere from the log and send them again, in one batch per server
+  // the txns with the votes asked (presumed commit) but no decision are aborted
+  private void recoverFromLog(){
+    recoveryStart = System.nanoTime();
+    Map<TxnId,Set<ActorRef>> inDoubt = new LinkedHashMap<>();
+    Map<TxnId,Set<ActorRef>> prepared = new LinkedHashMap<>();
+    Map<TxnId,ActorRef> asked = new LinkedHashMap<>();    // one-phase outcomes not known yet
+    Map<TxnId,Integer> writes = new HashMap<>();
+    int[] incarnation = new int[2];   // last epoch, id limit
+    ActorRefProvider provider = ((ExtendedActorSystem) getContext().system()).provider();
+
+    log.replay(provider::resolveActorRef, new TxnDecisionLog.Replay() {
+      @Override
+      public void onEpoch(int epoch) {
+        incarnation[0] = epoch;
+      }
+
+      @Override
+      public void onIds(int limit) {
+        incarnation[1] = limit;
+      }
+
+      @Override
+      public void onPrepare(TxnId txn, Set<ActorRef> servers) {
+        prepared.put(txn, servers);
+      }
+
+      @Override
+      public void onDecision(TxnId txn, boolean commit, long timestamp, Set<ActorRef> servers) {
+        prepared.remove(txn);
+        clock.observe(timestamp);
+        if(TxnSystem.presumed(commit)) return;   // nobody waits for an ack
+        txnHistory.put(txn, commit, timestamp);
+        inDoubt.put(txn, servers);
+      }
+
+      @Override
+      public void onEnd(TxnId txn) {
+        if(inDoubt.remove(txn) != null) txnHistory.remove(txn);
+        asked.remove(txn);
+      }
+
+      @Override
+      public void onOnePhase(TxnId txn, ActorRef server, int n) {
+        asked.put(txn, server);
+        writes.put(txn, n);
+      }
+    });
+
+    epoch = incarnation[0] + 1;
+    globID = incarnation[1];
+    idLimit = idReserved = globID + TxnSystem.idBlock;   // a new block, durable with the epoch
+    log.logEpoch(epoch);
+    log.logIds(idLimit);
+    for(TxnId txn : prepared.keySet()){
+      txnHistory.put(txn, false);
+      trace.decision(txn, false);
+      log.logDecision(txn, false, 0, prepared.get(txn));
+      inDoubt.put(txn, prepared.get(txn));
+    }
+    log.sync();
+
+    for(TxnId txn : inDoubt.keySet()){
+      unfinished.add(txn.id);
+    }
+    Map<ActorRef,List<FinalDecisionMsg>> batches = new HashMap<>();
+    for(TxnId txn : inDoubt.keySet()){
+      for(ActorRef server : inDoubt.get(txn)){
+        batches.computeIfAbsent(server, s -> new ArrayList<>()).add(new FinalDecisionMsg(txnHistory.get(txn), txn, watermark(), txnHistory.timestamp(txn)));
+      }
+      sendResult(txn);    // the client may not know it yet
+      if(!inDoubt.get(txn).isEmpty()) recovering.add(txn);
+      waitAcks(txn, inDoubt.get(txn));
+    }
+    for(ActorRef server : batches.keySet()){
+      List<FinalDecisionMsg> decisions = batches.get(server);
+      sendReal(decisions.size() == 1 ? decisions.get(0) : new DecisionBatchMsg(decisions), getSelf(), server);
+    }
+    for(TxnId txn : asked.keySet()){   // only the server knows the outcome, ask it again
+      onePhase.put(txn, writes.get(txn));
+      OngoingTxn.put(txn, new HashSet<>(Collections.singleton(asked.get(txn))));
+      unfinished.add(txn.id);
+      recovering.add(txn);
+      askOnePhase(txn, asked.get(txn));
+      setVoteTimeout(txn);
+    }
+
+    printLog(() -> "\t" + "COORDI " + coordinatorId + " Replayed the log in " + (System.nanoTime() - recoveryStart)/1000000 + " ms: "
+             + inDoubt.size() + " decisions sent again (" + prepared.size() + " aborted) to " + batches.size() + " servers, "
+             + asked.size() + " one-phase outcomes asked again", Crash);
+    if(recovering.isEmpty()) recovered();
+  }
+
+  // every decision taken back from the log has been applied
+  private void recovered(){
+    long time = (System.nanoTime() - recoveryStart)/1000000;
+    recoveries++;
+    recoveryTime += time;
+    maxRecoveryTime = Math.max(maxRecoveryTime, time);
+    printLog(() -> "\t" + "COORDI " + coordinatorId + " Recovery complete in " + time + " ms", Crash);
   }
 
   private void crash(){
-    for(TxnId txn : voteTimeout.keySet()){    //delete all pending timeouts
-      cancelVoteTimeout(txn);
-    }
+    trace.crash();
+    timers.clear();   //delete all pending timeouts
+    timeouts.clear();
+    pendingReads.clear();
     //set a time to wake up from crash
     getContext().system().scheduler().scheduleOnce(
             Duration.create(timeCrashed, TimeUnit.MILLISECONDS),
@@ -281,6 +723,31 @@ public class TxnCoordinator extends AbstractActor {
             new RecoveryMsg(), // message sent to myself
             getContext().system().dispatcher(), getSelf()
     );
+    outbox.clear();   // the operations not sent yet are lost
+    waitingBegins.clear();
+    if(log != null){    // lose everything that is not in the log
+      log.discard();
+      pendingDecisions.clear();
+      pendingPrepares.clear();
+      pendingOnePhase.clear();
+      syncScheduled = false;
+      recovering.clear();
+      txnBind.clear();
+      OngoingTxn.clear();
+      ServerDecisions.clear();
+      txnHistory.clear();
+      pendingAcks.clear();
+      unfinished.clear();
+      snapshots.clear();
+      commitTimestamp.clear();
+      writtenKeys.clear();
+      txnState.clear();
+      onePhase.clear();
+      globID = 0;
+      epoch = 0;
+      idLimit = idReserved = 0;
+    }
+    flushScheduled = false;
     getContext().become(crashed()); //ignore following messages
     
   }
@@ -295,45 +762,82 @@ public class TxnCoordinator extends AbstractActor {
 
   private void onTxnBeginMsg(TxnBeginMsg msg) {
 
-    if(txnBind.containsKey(getSender())){return;}
-    
-    printLog("\tCOORDI " + coordinatorId + " Received txnBegin from " + getSender().path().name(), "Verbose");
-    TxnId txn = new TxnId(getSender(),getSelf(),globID);
+    TxnId bound = txnBind.get(getSender());
+    if(bound != null){   // the client gave up this txn (its accept or its outcome was late)
+      if(OngoingTxn.get(bound).isEmpty() && !timers.isArmed(bound, Phase.VOTE)){   // nothing done yet: accept it again
+        sendReal(new TxnAcceptMsg(bound.key, load()), getSelf(), getSender());
+        return;
+      }
+      printLog(() -> "\t" + bound.name() + " COORDI " + coordinatorId + " Client began again, txn given up", Verbose);
+      if(timers.isArmed(bound, Phase.VOTE)) unbind(bound);   // already ending, the outcome comes anyway
+      else abort(bound);
+    }
+
+    printLog(() -> "\tCOORDI " + coordinatorId + " Received txnBegin from " + getSender().path().name(), Verbose);
+    if(!hasFreeSlot()){   // too many TXNs: wait for one to end (a client asking again keeps its place)
+      if(waitingBegins.putIfAbsent(getSender(), new WaitingBegin(msg, System.currentTimeMillis())) == null) queuedBegins++;
+      return;
+    }
+    begin(getSender(), msg);
+  }
+
+  private void begin(ActorRef client, TxnBeginMsg msg) {
+    TxnId txn = new TxnId(client,getSelf(),msg.clientId,coordinatorId,epoch,nextId());
 
-    txnBind.put(getSender(),txn);
+    txnBind.put(client,txn);
+    trace.begin(txn);
     OngoingTxn.put(txn,new HashSet<>()); // add new transaction in Ongoing
     ServerDecisions.put(txn,new ArrayList<>()); // add new transaction in ServerDecisions
     txnState.put(txn,CrashCoordType.BeforeDecide.name());
-  
-    globID = globID + 1;
+    unfinished.add(txn.id);
+    if(msg.readOnly) snapshots.put(txn, clock.tick()); // read everything from the current snapshot
 
-    sendReal(new TxnAcceptMsg(), getSelf(), getSender()); // send accept txn to client
+    sendReal(new TxnAcceptMsg(txn.key, load()), getSelf(), client); // send accept txn to client
   }
 
   /* --------------------------------------------------------------------*/
   // receive Read request from Client, forward to Server
   private void onReadMsg(ReadMsg msg) {
-   
-    ActorRef server = getServerFromKey(msg.key);
 
     TxnId txn = txnBind.get(getSender());
     if(txn == null){return;}
-    
-    printLog("\t" + txn.name + " COORDI " + coordinatorId + " Received Read from " + getSender().path().name() 
-             + " - Ask to " + server.path().name(), "Verbose");
 
-    setReadTimeout(txn,server,msg.key,TxnSystem.N_SERVERS*TxnSystem.processTime);
-    OngoingTxn.get(txn).add(server);
-    sendReal(new FwdReadMsg(msg.key, txn), getSelf(), server); // forward the read to the right server
+    forwardRead(txn, msg.key);
+  }
+
+  // receive the whole read set from Client, forward all the reads at once
+  // (the reads for the same server travel in the same batch)
+  private void onReadSetMsg(ReadSetMsg msg) {
+
+    TxnId txn = txnBind.get(getSender());
+    if(txn == null){return;}
+
+    for(Integer key : msg.keys){
+      forwardRead(txn, key);
+    }
+  }
+
+  private void forwardRead(TxnId txn, Integer key) {
+
+    ActorRef server = getServerFromKey(key);
+
+    printLog(() -> "\t" + txn.name() + " COORDI " + coordinatorId + " Received Read from " + txn.client.path().name() 
+             + " - Ask to " + server.path().name(), Verbose);
+
+    waitRead(txn, server);
+    long snapshot = snapshots.getOrDefault(txn, 0L);
+    if(snapshot == 0) OngoingTxn.get(txn).add(server);  // snapshot reads leave nothing to validate on the server
+    sendOp(new FwdReadMsg(key, txn, snapshot), server); // forward the read to the right server
     
   }
 
   // receive Read result from Server, forward to Client
   private void onFwdReadResultMsg(FwdReadResultMsg msg) {
+    if(OngoingTxn.get(msg.txn) == null) return;   // decision to abort already taken
     
-    printLog("\t" + msg.txn.name + " COORDI " + coordinatorId + " Received value from " + getSender().path().name(), "Verbose");
+    printLog(() -> "\t" + msg.txn.name() + " COORDI " + coordinatorId + " Received value from " + getSender().path().name(), Verbose);
 
-    cancelReadTimeout(msg.txn,getSender(),msg.key);
+    readDone(msg.txn, getSender());
     sendReal(new ReadResultMsg(msg.key,msg.value), getSelf(), msg.txn.client);
   
   }
@@ -347,103 +851,253 @@ public class TxnCoordinator extends AbstractActor {
     TxnId txn = txnBind.get(getSender());
     if(txn == null){return;}
 
-    printLog("\t" + txn.name + " COORDI " + coordinatorId + " Received Write from " + getSender().path().name() 
-             + " - Ask to " + server.path().name(), "Verbose");
+    printLog(() -> "\t" + txn.name() + " COORDI " + coordinatorId + " Received Write from " + getSender().path().name() 
+             + " - Ask to " + server.path().name(), Verbose);
+
+    addWrite(txn, server, msg.key);
+    sendOp(new FwdWriteMsg(msg.key, msg.value, txn), server); // forward the write to the right server
+
+  }
+
+  /* --------------------------------------------------------------------*/
+  // receive Transfer request from Client, forward to the Server of the first key
+  // the result comes back from the Server of the second key
+  private void onTransferMsg(TransferMsg msg) {
+
+    ActorRef fromServer = getServerFromKey(msg.fromKey);
+    ActorRef toServer = getServerFromKey(msg.toKey);
+
+    TxnId txn = txnBind.get(getSender());
+    if(txn == null){return;}
+
+    printLog(() -> "\t" + txn.name() + " COORDI " + coordinatorId + " Received Transfer from " + getSender().path().name()
+             + " - Ask to " + fromServer.path().name() + " -> " + toServer.path().name(), Verbose);
+
+    waitRead(txn, toServer);   // the result comes from the second server
+    OngoingTxn.get(txn).add(fromServer);
+    OngoingTxn.get(txn).add(toServer);
+    addWrite(txn, fromServer, msg.fromKey);
+    addWrite(txn, toServer, msg.toKey);
+    sendOp(new FwdTransferMsg(msg.fromKey, msg.toKey, toServer, txn), fromServer);
+
+  }
+
+  // receive Transfer result from the Server of the second key, forward to Client
+  private void onFwdTransferResultMsg(FwdTransferResultMsg msg) {
+    if(OngoingTxn.get(msg.txn) == null) return;   // decision to abort already taken
+
+    printLog(() -> "\t" + msg.txn.name() + " COORDI " + coordinatorId + " Received transfer result from " + getSender().path().name(), Verbose);
 
-    sendReal(new FwdWriteMsg(msg.key, msg.value, txn), getSelf(), server); // forward the write to the right server
+    readDone(msg.txn, getSender());
+    sendReal(new TransferResultMsg(msg.fromKey,msg.toKey,msg.amount), getSelf(), msg.txn.client);
 
   }
 
+  // the window is over, send all the operations waiting
+  private void onBatchFlushMsg(BatchFlushMsg msg) {
+    flushScheduled = false;
+    for(ActorRef server : new ArrayList<>(outbox.keySet())){
+      flush(server);
+    }
+  }
+
+  // replies of a server to a batch, handled one by one
+  private void onResultBatchMsg(ResultBatchMsg msg) {
+    for(Object result : msg.results){
+      if(result instanceof FwdReadResultMsg) onFwdReadResultMsg((FwdReadResultMsg) result);
+      else if(result instanceof FwdTransferResultMsg) onFwdTransferResultMsg((FwdTransferResultMsg) result);
+    }
+  }
+
   /* --------------------------------------------------------------------*/
   private void onTxnEndMsg(TxnEndMsg msg) { 
     
     TxnId txn = txnBind.get(getSender());
     if(txn == null){return;}
   
-    if(msg.commit) printLog("\t" + txn.name + " COORDI " + coordinatorId + " Received TxnEnd COMMIT from " + getSender().path().name(), "Verbose");
-    else printLog("\t" + txn.name + " COORDI " + coordinatorId + " Received TxnEnd ABORT from " + getSender().path().name(), "Verbose");
+    if(msg.commit) printLog(() -> "\t" + txn.name() + " COORDI " + coordinatorId + " Received TxnEnd COMMIT from " + getSender().path().name(), Verbose);
+    else printLog(() -> "\t" + txn.name() + " COORDI " + coordinatorId + " Received TxnEnd ABORT from " + getSender().path().name(), Verbose);
 
-    Set<ActorRef> participants = new HashSet<ActorRef>(OngoingTxn.get(txn));
+    // the servers only read from vote READ_ONLY, they don't take part in the termination protocol
+    Set<ActorRef> participants = new HashSet<ActorRef>();
+    for(ActorRef server : OngoingTxn.get(txn)){
+      if(writes(txn, server) > 0) participants.add(server);
+    }
     participants.add(getSelf());
 
-    if(msg.commit){ // if received commit, do validation procedure
-      printLog("\t" + txn.name + " COORDI "+ coordinatorId + " - Validation with " + printOngoing(OngoingTxn.get(txn)), "Verbose");
+    if(snapshots.containsKey(txn)){ // read-only: the snapshot is consistent, nothing to validate
+      printLog(() -> "\t" + txn.name() + " COORDI "+ coordinatorId + " - Read-only, no validation", Verbose);
+      txnHistory.put(txn, msg.commit);
+      trace.decision(txn, msg.commit);
+      sendResult(txn); // send final Decision
 
-      setVoteTimeout(txn, TxnSystem.N_SERVERS*TxnSystem.processTime); // set a timeout waiting for votes
-      for(ActorRef server : OngoingTxn.get(txn)){
-        sendReal(new CanCommitMsg(txn, participants), getSelf(), server); // ask to commit
+      // remove transaction
+      unbind(txn);
+      waitAcks(txn, OngoingTxn.get(txn));
+      OngoingTxn.remove(txn);
+      ServerDecisions.remove(txn);
+      commitTimestamp.remove(txn);
+      writtenKeys.remove(txn);
+      endReads(txn);
+      snapshots.remove(txn);
+      txnState.remove(txn);
+      return;
+    }
+
+    if(msg.commit && TxnSystem.onePhaseCommit && OngoingTxn.get(txn).size() == 1){ // only one server, it decides alone
+      ActorRef server = OngoingTxn.get(txn).iterator().next();
+      printLog(() -> "\t" + txn.name() + " COORDI "+ coordinatorId + " - One-phase commit with " + server.path().name(), Verbose);
+
+      onePhase.put(txn, writes(txn, server));
+      setVoteTimeout(txn); // set a timeout waiting for the outcome
+      if(log != null){  // asked once in the log, so a recovery asks it again (see onLogSyncMsg)
+        log.logOnePhase(txn, server, onePhase.get(txn));
+        pendingOnePhase.put(txn, server);
+        scheduleSync();
+        return;
+      }
+      askOnePhase(txn, server);
+
+      // check if coordinator should crash (before knowing the decision)
+      if(nextCrash.name().equals(txnState.get(txn))) {
+        printLog(() -> "\t" + "COORDI " + coordinatorId + " Crashing - " + nextCrash.name(), Check);
+        crash();
+      }
+      return;
+    }
+
+    if(msg.commit){ // if received commit, do validation procedure
+      printLog(() -> "\t" + txn.name() + " COORDI "+ coordinatorId + " - Validation with " + printOngoing(OngoingTxn.get(txn)), Verbose);
 
-        // if(nextCrash.name().equals(txnState.get(txn))) {
-        //   printLog("\t" + "COORDI " + coordinatorId + " Crashing - " + nextCrash.name(), "Check");
-        //   crash();
-        //   return;
-        // }
+      if(log != null && TxnSystem.presumption.equals("Commit")){  // a txn forgotten in a crash would be presumed committed
+        log.logPrepare(txn, OngoingTxn.get(txn));
+        pendingPrepares.put(txn, participants);
+        scheduleSync();
       }
+      else askVotes(txn, participants);
+      setVoteTimeout(txn); // set a timeout waiting for votes
 
       // check if coordinator should crash (before sending decision)
       if(nextCrash.name().equals(txnState.get(txn))) {
-        printLog("\t" + "COORDI " + coordinatorId + " Crashing - " + nextCrash.name(), "Check");
+        printLog(() -> "\t" + "COORDI " + coordinatorId + " Crashing - " + nextCrash.name(), Check);
         crash();
         return;
       }
 
     } 
     else { // if received abort, send abort to servers
-      printLog("\t" + txn.name + " COORDI "+ coordinatorId + " - Abort to " + printOngoing(OngoingTxn.get(txn)), "Verbose");
-      
-      Boolean finalDecision = false;
-      txnHistory.put(txn, finalDecision);
+      abort(txn);
+    }
+  }
 
-      
-      for(ActorRef server : OngoingTxn.get(txn)){
-        sendReal(new FinalDecisionMsg(finalDecision, txn), getSelf(), server); // tell to abort
-      }
-      sendReal(new TxnResultMsg(finalDecision), getSelf(), txn.client); // send final Decision 
+  // abort a txn not asked to commit: send abort to servers
+  private void abort(TxnId txn){
+    printLog(() -> "\t" + txn.name() + " COORDI "+ coordinatorId + " - Abort to " + printOngoing(OngoingTxn.get(txn)), Verbose);
 
-      // remove transaction (do not expect a response back to servers)
-      txnBind.remove(txn.client);
-      OngoingTxn.remove(txn);
-      ServerDecisions.remove(txn);
-      txnState.remove(txn);
-      cancelVoteTimeout(txn);
-    }
+    Boolean finalDecision = false;
+    txnHistory.put(txn, finalDecision);
+    trace.decision(txn, finalDecision);
+
+
+    announce(txn, OngoingTxn.get(txn)); // send final Decision to all servers and to the client
+
+    // remove transaction (do not expect a response back to servers)
+    unbind(txn);
+    OngoingTxn.remove(txn);
+    ServerDecisions.remove(txn);
+    commitTimestamp.remove(txn);
+    writtenKeys.remove(txn);
+    endReads(txn);
+    snapshots.remove(txn);
+    txnState.remove(txn);
+    cancelVoteTimeout(txn);
+  }
+
+  // ask the outcome to the only server of the txn
+  private void askOnePhase(TxnId txn, ActorRef server){
+    timeouts.asked(txn, Phase.VOTE, server);
+    sendReal(new OnePhaseCommitMsg(txn, onePhase.get(txn)), getSelf(), server);
+  }
+
+  // the only server of the transaction decided
+  private void onOnePhaseResultMsg(OnePhaseResultMsg msg){
+    if(onePhase.remove(msg.txn) == null) return;   // already known
+    timeouts.answered(msg.txn, Phase.VOTE, getSender());
+
+    printLog(() -> "\t" + msg.txn.name() + " COORDI " + coordinatorId + " Received One-phase " + (msg.commit ? "COMMIT" : "ABORT")
+             + " from " + getSender().path().name(), Verbose);
+
+    clock.observe(msg.timestamp);
+    txnHistory.put(msg.txn, msg.commit, msg.timestamp);
+    trace.decision(msg.txn, msg.commit);
+    sendResult(msg.txn); // send final Decision
+    if(log != null && TxnSystem.presumed(msg.commit)) log.logEnd(msg.txn);   // not asked again (finished() closes the other outcome)
+
+    // remove transaction (the server already applied the decision)
+    unbind(msg.txn);   // after a recovery the client is not bound anymore
+    waitAcks(msg.txn, Collections.emptySet());
+    OngoingTxn.remove(msg.txn);
+    ServerDecisions.remove(msg.txn);
+    commitTimestamp.remove(msg.txn);
+    writtenKeys.remove(msg.txn);
+    endReads(msg.txn);
+    snapshots.remove(msg.txn);
+    txnState.remove(msg.txn);
+    cancelVoteTimeout(msg.txn);
   }
 
   private void onServerDecisionMsg(ServerDecisionMsg msg){
     if(OngoingTxn.get(msg.txn) == null) return;   // decision to abort already taken
+    if(onePhase.containsKey(msg.txn)) return;     // the server decides alone (it aborts it after a crash)
+    timeouts.answered(msg.txn, Phase.VOTE, getSender());
 
-    printLog("\t" + msg.txn.name + " COORDI " + coordinatorId + " Received Decision from " + getSender().path().name(), "Verbose");
+    printLog(() -> "\t" + msg.txn.name() + " COORDI " + coordinatorId + " Received Decision from " + getSender().path().name(), Verbose);
 
-    ServerDecisions.get(msg.txn).add(msg.commit);
+    if(msg.commit && msg.readOnly){   // nothing to apply on that server, leave it out of the second phase
+      OngoingTxn.get(msg.txn).remove(getSender());
+    }
+    else{
+      ServerDecisions.get(msg.txn).add(msg.commit);
+      commitTimestamp.merge(msg.txn, msg.timestamp, Math::max);
+    }
 
     if( Integer.valueOf(ServerDecisions.get(msg.txn).size()).equals(Integer.valueOf(OngoingTxn.get(msg.txn).size())) 
         || !msg.commit){ // if arrives an abort OR all votes are commits then decide
       
-      printLog("\t" + msg.txn.name + " COORDI " + coordinatorId + " Decisions "+ printServerDecisions(ServerDecisions.get(msg.txn)), "Verbose");
+      printLog(() -> "\t" + msg.txn.name() + " COORDI " + coordinatorId + " Decisions "+ printServerDecisions(ServerDecisions.get(msg.txn)), Verbose);
       
       Boolean finalDecision = getfinalDecision(ServerDecisions.get(msg.txn));
-      txnHistory.put(msg.txn, finalDecision);
+      // the txn commits after all its votes
+      long timestamp = finalDecision ? commitTimestamp.getOrDefault(msg.txn, clock.tick()) : 0;
+      clock.observe(timestamp);
+      txnHistory.put(msg.txn, finalDecision, timestamp);
+      trace.decision(msg.txn, finalDecision);
 
       txnState.put(msg.txn,CrashCoordType.AfterDecide.name());
       // check if coordinator should crash (after sending decision to one server)
-      if(nextCrash.name().equals(txnState.get(msg.txn))) {
-        printLog("\t" + "COORDI " + coordinatorId + " Crashing - " + nextCrash.name(), "Crash");
+      if(nextCrash.name().equals(txnState.get(msg.txn)) && !OngoingTxn.get(msg.txn).isEmpty()) {
+        printLog(() -> "\t" + "COORDI " + coordinatorId + " Crashing - " + nextCrash.name(), Crash);
         ActorRef serverToSend = OngoingTxn.get(msg.txn).iterator().next(); // chose a random server to send the result
-        sendReal(new FinalDecisionMsg(finalDecision, msg.txn), getSelf(), serverToSend); // send final Decision to only one server
+        if(log != null){    // the decision must be durable before it is sent
+          log.logDecision(msg.txn, finalDecision, timestamp, OngoingTxn.get(msg.txn));
+          log.sync();
+        }
+        sendReal(new FinalDecisionMsg(finalDecision, msg.txn, watermark(), txnHistory.timestamp(msg.txn)), getSelf(), serverToSend); // send final Decision to only one server
         crash();
         return;
       }
 
        
-      for(ActorRef server : OngoingTxn.get(msg.txn)){
-        sendReal(new FinalDecisionMsg(finalDecision, msg.txn), getSelf(), server); // send final Decision to all servers
-      }
-      sendReal(new TxnResultMsg(finalDecision), getSelf(), msg.txn.client); // send final Decision
+      announce(msg.txn, OngoingTxn.get(msg.txn)); // send final Decision to all servers and to the client
 
       // remove transaction
-      txnBind.remove(msg.txn.client);
+      unbind(msg.txn);
       OngoingTxn.remove(msg.txn);
       ServerDecisions.remove(msg.txn);
+      commitTimestamp.remove(msg.txn);
+      writtenKeys.remove(msg.txn);
+      endReads(msg.txn);
+      snapshots.remove(msg.txn);
       txnState.remove(msg.txn);
       cancelVoteTimeout(msg.txn);
 
@@ -453,119 +1107,267 @@ public class TxnCoordinator extends AbstractActor {
 
   /* --------------------------------------------------------------------*/
   private void onTxnReadTimeoutMsg(TxnReadTimeoutMsg msg) throws InterruptedException {
+    if(!timers.expired(msg.txn, Phase.READ)) return;   // a result arrived meanwhile
     if(OngoingTxn.get(msg.txn) == null) return;   // decision to abort already taken
+    if(onePhase.containsKey(msg.txn)) return;     // only the server can decide now
 
-    printLog("\t" + msg.txn.name + " COORDI " + coordinatorId + " Timeout while waiting for read result from " + msg.server.path().name(), "Verbose");
+    printLog(() -> "\t" + msg.txn.name() + " COORDI " + coordinatorId + " Timeout while waiting for read results", Verbose);
 
     Boolean finalDecision = false;
     txnHistory.put(msg.txn, finalDecision);
+    trace.decision(msg.txn, finalDecision);
 
    
-    for(ActorRef server : OngoingTxn.get(msg.txn)){
-      sendReal(new FinalDecisionMsg(finalDecision, msg.txn), getSelf(), server); // send final Decision to all servers
-    }   
-    sendReal(new TxnResultMsg(finalDecision), getSelf(), msg.txn.client); // send final Decision 
+    announce(msg.txn, OngoingTxn.get(msg.txn)); // send final Decision to all servers and to the client
 
     // remove transaction
-    txnBind.remove(msg.txn.client);
+    unbind(msg.txn);
     OngoingTxn.remove(msg.txn);
     ServerDecisions.remove(msg.txn);
+    commitTimestamp.remove(msg.txn);
+    writtenKeys.remove(msg.txn);
+    endReads(msg.txn);
+    snapshots.remove(msg.txn);
     txnState.remove(msg.txn);
   }
 
   /* --------------------------------------------------------------------*/
   private void onTxnVoteTimeoutMsg(TxnVoteTimeoutMsg msg) throws InterruptedException {
+    if(!timers.expired(msg.txn, Phase.VOTE)) return;   // decided or asked again meanwhile
     if(OngoingTxn.get(msg.txn) == null) return;   // decision to abort already taken
 
-    printLog("\t" + msg.txn.name + " COORDI " + coordinatorId + " Timeout while waiting for votes", "Verbose");
+    if(onePhase.containsKey(msg.txn)){  // the server may have committed already, only it can tell
+      printLog(() -> "\t" + msg.txn.name() + " COORDI " + coordinatorId + " Timeout while waiting for one-phase outcome, ask again", Termination);
+      ActorRef server = OngoingTxn.get(msg.txn).iterator().next();
+      timeouts.askedAgain(msg.txn, Phase.VOTE, server);
+      sendReal(new OnePhaseCommitMsg(msg.txn, onePhase.get(msg.txn)), getSelf(), server);
+      setVoteTimeout(msg.txn);
+      return;
+    }
+
+    printLog(() -> "\t" + msg.txn.name() + " COORDI " + coordinatorId + " Timeout while waiting for votes", Verbose);
 
     Boolean finalDecision = false;
     txnHistory.put(msg.txn, finalDecision);
+    trace.decision(msg.txn, finalDecision);
 
     
-    for(ActorRef server : OngoingTxn.get(msg.txn)){
-      sendReal(new FinalDecisionMsg(finalDecision, msg.txn), getSelf(), server); // send final Decision to all servers
-    } 
-    sendReal(new TxnResultMsg(finalDecision), getSelf(), msg.txn.client); // send final Decision
+    announce(msg.txn, OngoingTxn.get(msg.txn)); // send final Decision to all servers and to the client
 
     // remove transaction
-    txnBind.remove(msg.txn.client);
+    unbind(msg.txn);
     OngoingTxn.remove(msg.txn);
     ServerDecisions.remove(msg.txn);
+    commitTimestamp.remove(msg.txn);
+    writtenKeys.remove(msg.txn);
+    endReads(msg.txn);
+    snapshots.remove(msg.txn);
     txnState.remove(msg.txn);
   }
 
   /* --------------------------------------------------------------------*/
   private void onCrashCoordMsg(CrashCoordMsg msg) throws InterruptedException {
-    printLog("\t" + "COORDI " + coordinatorId + " Received crash msg "+msg.nextCrash.name()+" "+msg.timeCrashed, "Crash");
+    printLog(() -> "\t" + "COORDI " + coordinatorId + " Received crash msg "+msg.nextCrash.name()+" "+msg.timeCrashed, Crash);
     nextCrash = msg.nextCrash;
     timeCrashed = msg.timeCrashed;
   }
 
   private void onRecoveryMsg(RecoveryMsg msg) throws InterruptedException{
-    printLog("\t" + "COORDI " + coordinatorId + " Recovered after crash", "Crash");
+    printLog(() -> "\t" + "COORDI " + coordinatorId + " Recovered after crash", Crash);
+    trace.recover();
     getContext().become(createReceive());   //restart to handle messages
     nextCrash = CrashCoordType.NONE;
 
+    if(log != null){    // the memory was lost, take the decisions back from the log
+      recoverFromLog();
+      return;
+    }
+    epoch++;
+
+    for(TxnId txn : pendingAcks.keySet()){    // the ack timeouts were deleted by the crash
+      setAckTimeout(txn);
+    }
+
     // Handle crash
     // Depending on the state that the coordinator was in each transaction,
     // do the steps of 2PC cohort recovery
     for(TxnId txn : new HashSet<>(OngoingTxn.keySet())){
 
+      if(onePhase.containsKey(txn)){   // the decision is up to the server, ask it again
+        printLog(() -> "\t" + txn.name() + " COORDI " + coordinatorId + " Asking one-phase outcome after recovery", Crash);
+        ActorRef server = OngoingTxn.get(txn).iterator().next();
+        timeouts.askedAgain(txn, Phase.VOTE, server);
+        sendReal(new OnePhaseCommitMsg(txn, onePhase.get(txn)), getSelf(), server);
+        setVoteTimeout(txn);
+        continue;
+      }
+
       if(txnState.get(txn).equals(CrashCoordType.BeforeDecide.name())){
-        printLog("\t" + txn.name + " COORDI " + coordinatorId + " Sending abort after recovery", "Crash");
+        printLog(() -> "\t" + txn.name() + " COORDI " + coordinatorId + " Sending abort after recovery", Crash);
         
         Boolean finalDecision = false;
         txnHistory.put(txn, finalDecision);
+        trace.decision(txn, finalDecision);
         
-        for(ActorRef server : OngoingTxn.get(txn)){
-          sendReal(new FinalDecisionMsg(finalDecision, txn), getSelf(), server); // send final Decision to all servers
-        }
-        sendReal(new TxnResultMsg(finalDecision), getSelf(), txn.client); // send final Decision 
+        announce(txn, OngoingTxn.get(txn)); // send final Decision to all servers and to the client
 
       }
 
       if(txnState.get(txn).equals(CrashCoordType.AfterDecide.name())){
-        printLog("\t" + txn.name + " COORDI " + coordinatorId + " Sending decision after recovery", "Crash");
+        printLog(() -> "\t" + txn.name() + " COORDI " + coordinatorId + " Sending decision after recovery", Crash);
         
-        Boolean finalDecision = txnHistory.get(txn);
-        for(ActorRef server : OngoingTxn.get(txn)){
-          sendReal(new FinalDecisionMsg(finalDecision, txn), getSelf(), server); // send final Decision to all servers
-        }
-        sendReal(new TxnResultMsg(finalDecision), getSelf(), txn.client); // send final Decision 
+        announce(txn, OngoingTxn.get(txn)); // send final Decision to all servers and to the client
 
       }
 
       // remove transaction
-      txnBind.remove(txn.client);
+      unbind(txn);
       OngoingTxn.remove(txn);
       ServerDecisions.remove(txn);
+      commitTimestamp.remove(txn);
+      writtenKeys.remove(txn);
+      endReads(txn);
+      snapshots.remove(txn);
       txnState.remove(txn);
       
     }
   }
 
+  // the log records are durable: ask the votes and send the decisions waiting for them
+  private void onLogSyncMsg(LogSyncMsg msg){
+    syncScheduled = false;
+    log.sync();
+    idLimit = idReserved;
+
+    for(TxnId txn : pendingPrepares.keySet()){
+      if(OngoingTxn.containsKey(txn)) askVotes(txn, pendingPrepares.get(txn));   // not aborted meanwhile
+    }
+    pendingPrepares.clear();
+
+    boolean asked = false;
+    for(TxnId txn : pendingOnePhase.keySet()){
+      if(!onePhase.containsKey(txn)) continue;
+      askOnePhase(txn, pendingOnePhase.get(txn));
+      asked = true;
+    }
+    pendingOnePhase.clear();
+
+    for(TxnId txn : pendingDecisions.keySet()){
+      sendDecision(txn, pendingDecisions.get(txn));
+    }
+    pendingDecisions.clear();
+
+    // check if coordinator should crash (one-phase outcome asked, not known yet)
+    if(asked && nextCrash == CrashCoordType.BeforeDecide) {
+      printLog(() -> "\t" + "COORDI " + coordinatorId + " Crashing - " + nextCrash.name(), Check);
+      crash();
+    }
+  }
+
+  // a server applied the decision
+  private void onDecisionAckMsg(DecisionAckMsg msg){
+    Set<ActorRef> waiting = pendingAcks.get(msg.txn);
+    if(waiting == null) return;
+    timeouts.answered(msg.txn, Phase.ACK, getSender());
+    waiting.remove(getSender());
+    if(waiting.isEmpty()){
+      pendingAcks.remove(msg.txn);
+      timers.cancel(msg.txn, Phase.ACK);
+      finished(msg.txn);
+    }
+  }
+
+  // some servers did not apply the decision yet (they may have been crashed), send it again
+  private void onTxnAckTimeoutMsg(TxnAckTimeoutMsg msg){
+    if(!timers.expired(msg.txn, Phase.ACK)) return;   // acked meanwhile
+    if(pendingAcks.get(msg.txn) == null) return;
+
+    printLog(() -> "\t" + msg.txn.name() + " COORDI " + coordinatorId + " Timeout while waiting for acks, send again the decision", Termination);
+
+    for(ActorRef server : pendingAcks.get(msg.txn)){
+      timeouts.askedAgain(msg.txn, Phase.ACK, server);
+      sendReal(new FinalDecisionMsg(txnHistory.get(msg.txn), msg.txn, watermark(), txnHistory.timestamp(msg.txn)), getSelf(), server);
+    }
+    setAckTimeout(msg.txn);
+  }
+
+  // advance the timeouts, the expired ones are handled as messages
+  private void onTickMsg(TickMsg msg){
+    for(Object timeout : timers.advance()){
+      getSelf().tell(timeout, getSelf());
+    }
+
+    // the begins waiting too long are turned down, their clients try another coordinator
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<ActorRef,WaitingBegin>> it = waitingBegins.entrySet().iterator();
+    while(it.hasNext()){
+      Map.Entry<ActorRef,WaitingBegin> waiting = it.next();
+      if(now - waiting.getValue().since < TxnSystem.admissionWait) break;   // in arrival order
+      it.remove();
+      busyReplies++;
+      printLog(() -> "\tCOORDI " + coordinatorId + " Busy, turning down txnBegin from " + waiting.getKey().path().name(), Verbose);
+      sendReal(new TxnBusyMsg(load()), getSelf(), waiting.getKey());
+    }
+  }
+
   private void onParticipantsDecisionMsg(ParticipantsDecisionMsg msg) throws InterruptedException {
-    if(txnHistory.get(msg.txn) != null){  // if the server knows the decision for a certain transaction
-      printLog("\t" + msg.txn.name + " COORDI " + coordinatorId + " Forwarding Final Decision (termination protocol) to server " + getSender().path().name(), "Termination");
-      sendReal(new FwdParticipantsDecisionMsg(txnHistory.get(msg.txn), msg.txn), getSelf(), getSender());    // comunicate it to the asking server (termination protocol)
+    FwdParticipantsDecisionMsg decision = knownDecision(msg.txn);
+    if(decision != null) sendReal(decision, getSelf(), getSender());    // comunicate it to the asking server (termination protocol)
+  }
+
+  // a recovered server asks many txns at once: answer with all the decisions known, in a single message
+  private void onParticipantsDecisionBatchMsg(ParticipantsDecisionBatchMsg msg){
+    List<FwdParticipantsDecisionMsg> decisions = new ArrayList<>();
+    for(TxnId txn : msg.txns){
+      FwdParticipantsDecisionMsg decision = knownDecision(txn);
+      if(decision != null) decisions.add(decision);
+    }
+    if(!decisions.isEmpty()) sendReal(new FwdParticipantsDecisionBatchMsg(decisions), getSelf(), getSender());
+  }
+
+  // the decision of the txn for the asking server, null if unknown
+  private FwdParticipantsDecisionMsg knownDecision(TxnId txn){
+    if(pendingDecisions.containsKey(txn)) return null;   // not durable yet, the server will ask again
+    if(txnHistory.get(txn) != null){  // if the server knows the decision for a certain transaction
+      printLog(() -> "\t" + txn.name() + " COORDI " + coordinatorId + " Forwarding Final Decision (termination protocol) to server " + getSender().path().name(), Termination);
+      return new FwdParticipantsDecisionMsg(txnHistory.get(txn), txn, txnHistory.timestamp(txn));
     }
+    // decided and forgotten: the presumed decision
+    // with the log, a txn of an older epoch is unknown only if never decided (every decision is logged): aborted
+    if(!OngoingTxn.containsKey(txn) && (!TxnSystem.presumption.equals("None") || (log != null && txn.epoch() != epoch))){
+      boolean decision = TxnSystem.presumption.equals("Commit");
+      printLog(() -> "\t" + txn.name() + " COORDI " + coordinatorId + " Presumed " + (decision ? "commit" : "abort") + " (termination protocol) to server " + getSender().path().name(), Termination);
+      return new FwdParticipantsDecisionMsg(decision, txn, 0);
+    }
+    return null;
   }
 
+
   @Override
   public Receive createReceive() {
     return receiveBuilder()
             .match(WelcomeCoordMsg.class,  this::onWelcomeCoordMsg)
             .match(TxnBeginMsg.class,  this::onTxnBeginMsg)
             .match(ReadMsg.class,  this::onReadMsg)
+            .match(ReadSetMsg.class,  this::onReadSetMsg)
             .match(FwdReadResultMsg.class,  this::onFwdReadResultMsg)
             .match(WriteMsg.class,  this::onWriteMsg)
+            .match(TransferMsg.class,  this::onTransferMsg)
+            .match(FwdTransferResultMsg.class,  this::onFwdTransferResultMsg)
+            .match(BatchFlushMsg.class,  this::onBatchFlushMsg)
+            .match(ResultBatchMsg.class,  this::onResultBatchMsg)
             .match(TxnEndMsg.class,  this::onTxnEndMsg)
             .match(ServerDecisionMsg.class, this::onServerDecisionMsg)
+            .match(OnePhaseResultMsg.class, this::onOnePhaseResultMsg)
             .match(TxnReadTimeoutMsg.class,  this::onTxnReadTimeoutMsg)
             .match(TxnVoteTimeoutMsg.class,  this::onTxnVoteTimeoutMsg)
             .match(CrashCoordMsg.class,  this::onCrashCoordMsg)
             .match(ParticipantsDecisionMsg.class,  this::onParticipantsDecisionMsg)
+            .match(ParticipantsDecisionBatchMsg.class,  this::onParticipantsDecisionBatchMsg)
+            .match(DecisionAckMsg.class,  this::onDecisionAckMsg)
+            .match(TxnAckTimeoutMsg.class,  this::onTxnAckTimeoutMsg)
+            .match(TickMsg.class,  this::onTickMsg)
+            .match(LogSyncMsg.class,  this::onLogSyncMsg)
             .build();
   }
 
@@ -0,0 +1,81 @@
+package it.unitn.ds1;
+
+import java.util.BitSet;
+
+// data store of a single server, kept in a primitive array
+// every key owns 2 consecutive words {version, value} (the locks are in TxnLockTable)
+// at the offset of the key inside the range of the server
+// keys are grouped in pages, the pages changed since the last checkpoint are marked dirty
+public class TxnDataStore {
+  public static final int PAGE_KEYS = 4;
+
+  private static final int VERSION = 0;
+  private static final int VALUE = 1;
+  private static final int WORDS = 2;
+
+  private final int firstKey;
+  private final int size;
+  private final int[] words;
+  private long sum;   // running total of the values, used to check the correctness
+  private final BitSet dirty;
+
+  public TxnDataStore(int firstKey, int size, int initialValue) {
+    this.firstKey = firstKey;
+    this.size = size;
+    this.words = new int[size*WORDS];
+    for(int i=0; i<size; i++){
+      words[i*WORDS + VALUE] = initialValue;
+    }
+    this.sum = (long) size * initialValue;
+    this.dirty = new BitSet(pages());
+    this.dirty.set(0, pages());   // never checkpointed
+  }
+
+  // offset of the first word of a key
+  private int offset(int key){
+    return (key - firstKey)*WORDS;
+  }
+
+  public int getVersion(int key){
+    return words[offset(key) + VERSION];
+  }
+
+  public int getValue(int key){
+    return words[offset(key) + VALUE];
+  }
+
+  // write a committed value with its new version
+  public void apply(int key, int version, int value){
+    int o = offset(key);
+    sum = sum - words[o + VALUE] + value;
+    words[o + VERSION] = version;
+    words[o + VALUE] = value;
+    dirty.set((key - firstKey)/PAGE_KEYS);
+  }
+
+  public long sum(){
+    return sum;
+  }
+
+  public int firstKey(){
+    return firstKey;
+  }
+
+  public int size(){
+    return size;
+  }
+
+  /*-- Pages ---------------------------------------------------------------- */
+
+  public int pages(){
+    return (size + PAGE_KEYS - 1)/PAGE_KEYS;
+  }
+
+  public boolean isDirty(int page){
+    return dirty.get(page);
+  }
+
+  public void clean(int page){
+    dirty.clear(page);
+  }
+}
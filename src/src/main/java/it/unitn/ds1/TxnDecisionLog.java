@@ -0,0 +1,226 @@
+package it.unitn.ds1;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+
+import akka.actor.ActorRef;
+import akka.serialization.Serialization;
+
+import it.unitn.ds1.TxnCoordinator.TxnId;
+
+// append-only log of the decisions of a coordinator
+// a decision is forced (together with the others taken meanwhile) before it is sent,
+// so after a crash the coordinator knows every txn whose servers may still be in doubt
+// record = {type, ...}
+//   EPOCH    -> {epoch}                                  incarnation of the coordinator
+//   IDS      -> {limit}                                  txn ids reserved up to limit (excluded)
+//   PREPARE  -> {txn, servers}                           votes asked (presumed commit only)
+//   DECISION -> {txn, commit, commit timestamp, servers}
+//   END      -> {txn}                                    every server applied the decision
+//   ONEPHASE -> {txn, server, writes}                    outcome asked to the only server (closed by END)
+public class TxnDecisionLog {
+  private static final byte EPOCH = 0;
+  private static final byte IDS = 1;
+  private static final byte PREPARE = 2;
+  private static final byte DECISION = 3;
+  private static final byte END = 4;
+  private static final byte ONEPHASE = 5;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final ByteArrayOutputStream buffer;   // records not yet written
+  private final DataOutputStream out;
+
+  // statistics to measure the cost of the log
+  private long records;
+  private long syncs;
+  private long syncTime;   // ns spent writing and forcing the log
+
+  // replayed records are given back to the owner of the log
+  public interface Replay {
+    void onEpoch(int epoch);
+    void onIds(int limit);
+    void onPrepare(TxnId txn, Set<ActorRef> servers);
+    void onDecision(TxnId txn, boolean commit, long timestamp, Set<ActorRef> servers);
+    void onEnd(TxnId txn);
+    void onOnePhase(TxnId txn, ActorRef server, int writes);
+  }
+
+  // open a new empty log in the given file
+  public TxnDecisionLog(Path path) {
+    this.path = path;
+    this.buffer = new ByteArrayOutputStream();
+    this.out = new DataOutputStream(buffer);
+    try{
+      Files.createDirectories(path.getParent());
+      this.channel = FileChannel.open(path,
+              StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /*-- Append --------------------------------------------------------------- */
+
+  public void logEpoch(int epoch){
+    try{
+      out.writeByte(EPOCH);
+      out.writeInt(epoch);
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+    records++;
+  }
+
+  public void logIds(int limit){
+    try{
+      out.writeByte(IDS);
+      out.writeInt(limit);
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+    records++;
+  }
+
+  public void logPrepare(TxnId txn, Set<ActorRef> servers){
+    try{
+      out.writeByte(PREPARE);
+      TxnLog.writeTxn(out, txn);
+      writeServers(servers);
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+    records++;
+  }
+
+  public void logDecision(TxnId txn, boolean commit, long timestamp, Set<ActorRef> servers){
+    try{
+      out.writeByte(DECISION);
+      TxnLog.writeTxn(out, txn);
+      out.writeBoolean(commit);
+      out.writeLong(timestamp);
+      writeServers(servers);
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+    records++;
+  }
+
+  public void logOnePhase(TxnId txn, ActorRef server, int writes){
+    try{
+      out.writeByte(ONEPHASE);
+      TxnLog.writeTxn(out, txn);
+      out.writeUTF(Serialization.serializedActorPath(server));
+      out.writeInt(writes);
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+    records++;
+  }
+
+  // not forced: if lost, the decision is only sent again after a crash
+  public void logEnd(TxnId txn){
+    try{
+      out.writeByte(END);
+      TxnLog.writeTxn(out, txn);
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+    records++;
+  }
+
+  private void writeServers(Set<ActorRef> servers) throws IOException {
+    out.writeInt(servers.size());
+    for(ActorRef server : servers){
+      out.writeUTF(Serialization.serializedActorPath(server));
+    }
+  }
+
+  // write all the buffered records and make them durable with one fsync
+  public void sync(){
+    if(buffer.size() == 0) return;
+    long start = System.nanoTime();
+    try{
+      ByteBuffer bb = ByteBuffer.wrap(buffer.toByteArray());
+      while(bb.hasRemaining()){
+        channel.write(bb);
+      }
+      channel.force(false);
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+    buffer.reset();
+    syncs++;
+    syncTime += System.nanoTime() - start;
+  }
+
+  // drop the records that were not synced yet (lost in a crash)
+  public void discard(){
+    buffer.reset();
+  }
+
+  /*-- Replay --------------------------------------------------------------- */
+
+  // read the whole log, stop at the end or at a truncated record
+  public void replay(Function<String, ActorRef> resolver, Replay replay){
+    DataInputStream in;
+    try{
+      in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(path)));
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+    try{
+      while(in.available() > 0){
+        byte type = in.readByte();
+        if(type == EPOCH) replay.onEpoch(in.readInt());
+        else if(type == IDS) replay.onIds(in.readInt());
+        else{
+          TxnId txn = TxnLog.readTxn(in, resolver);
+          if(type == PREPARE) replay.onPrepare(txn, readServers(in, resolver));
+          else if(type == DECISION){
+            boolean commit = in.readBoolean();
+            long timestamp = in.readLong();
+            replay.onDecision(txn, commit, timestamp, readServers(in, resolver));
+          }
+          else if(type == ONEPHASE){
+            ActorRef server = resolver.apply(in.readUTF());
+            replay.onOnePhase(txn, server, in.readInt());
+          }
+          else replay.onEnd(txn);
+        }
+      }
+    }catch (EOFException e){
+      // truncated record at the tail, it was never sent
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private Set<ActorRef> readServers(DataInputStream in, Function<String, ActorRef> resolver) throws IOException {
+    Set<ActorRef> servers = new HashSet<>();
+    int n = in.readInt();
+    for(int i=0; i<n; i++){
+      servers.add(resolver.apply(in.readUTF()));
+    }
+    return servers;
+  }
+
+  /*-- Statistics ----------------------------------------------------------- */
+
+  public String stats(){
+    return records + " records, " + syncs + " fsyncs, "
+           + (syncs == 0 ? 0 : syncTime/syncs/1000) + " us per fsync";
+  }
+
+  public void close(){
+    try{
+      channel.close();
+    }catch (IOException e){
+      System.err.println(e);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package it.unitn.ds1;
+
+import java.util.*;
+
+import akka.actor.ActorRef;
+
+import it.unitn.ds1.TxnCoordinator.TxnId;
+
+// decisions of the past transactions
+// every coordinator publishes a low watermark: all its txns with a smaller id
+// have been applied by every participant, so nobody can ask for them anymore
+// and their decisions are dropped
+public class TxnHistory {
+  private final Map<TxnId, Boolean> decisions;                   // lookup of a decision
+  private final Map<TxnId, Long> timestamps;                     // commit timestamp of the committed txns
+  private final Map<ActorRef, PriorityQueue<TxnId>> byCoordinator; // txns of every coordinator, by id
+  private final Map<ActorRef, Integer> watermarks;               // last watermark of every coordinator
+
+  public TxnHistory() {
+    this.decisions = new TxnMap<>();
+    this.timestamps = new TxnMap<>();
+    this.byCoordinator = new HashMap<>();
+    this.watermarks = new HashMap<>();
+  }
+
+  public Boolean get(TxnId txn){
+    return decisions.get(txn);
+  }
+
+  public void put(TxnId txn, Boolean decision){
+    if(decisions.put(txn, decision) == null){
+      byCoordinator.computeIfAbsent(txn.coordinator, c -> new PriorityQueue<>(Comparator.comparingInt(t -> t.id))).add(txn);
+    }
+  }
+
+  public void put(TxnId txn, Boolean decision, long timestamp){
+    put(txn, decision);
+    if(decision) timestamps.put(txn, timestamp);
+  }
+
+  // commit timestamp of the txn, 0 if unknown or aborted
+  public long timestamp(TxnId txn){
+    Long timestamp = timestamps.get(txn);
+    return timestamp == null ? 0 : timestamp;
+  }
+
+  // forget the decision of the txn (it stays in the queue of its coordinator until pruned)
+  public void remove(TxnId txn){
+    decisions.remove(txn);
+    timestamps.remove(txn);
+  }
+
+  // drop the decisions of all the txns of the coordinator with id lower than the watermark
+  public void prune(ActorRef coordinator, int watermark){
+    watermarks.merge(coordinator, watermark, Math::max);
+    PriorityQueue<TxnId> txns = byCoordinator.get(coordinator);
+    if(txns == null) return;
+    while(!txns.isEmpty() && txns.peek().id < watermark){
+      TxnId txn = txns.poll();
+      decisions.remove(txn);
+      timestamps.remove(txn);
+    }
+  }
+
+  // the txn is below the watermark of its coordinator: its decision may have been dropped
+  public boolean finished(TxnId txn){
+    Integer watermark = watermarks.get(txn.coordinator);
+    return watermark != null && txn.id < watermark;
+  }
+
+  public int size(){
+    return decisions.size();
+  }
+
+  public void clear(){
+    decisions.clear();
+    timestamps.clear();
+    byCoordinator.clear();
+    watermarks.clear();
+  }
+}
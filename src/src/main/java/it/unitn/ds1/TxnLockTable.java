@@ -0,0 +1,89 @@
+package it.unitn.ds1;
+
+import java.util.*;
+
+import it.unitn.ds1.TxnCoordinator.TxnId;
+
+// write locks of the keys of a server, with the txn owning them
+// the locks are kept by key offset inside the range of the server,
+// and the keys locked by every txn are kept to release them all at once.
+// The hold times are measured to diagnose the contention.
+public class TxnLockTable {
+  private final int firstKey;
+  private final TxnId[] owner;              // txn holding the lock of every key offset, null if free
+  private final long[] since;               // time (ns) the lock of every key offset was acquired
+  private final Map<TxnId, int[]> held;     // keys locked by every txn
+
+  // statistics
+  private long acquired;
+  private long conflicts;
+  private long holdTime;                    // ns, total of the released locks
+  private long maxHoldTime;                 // ns
+
+  public TxnLockTable(int firstKey, int size) {
+    this.firstKey = firstKey;
+    this.owner = new TxnId[size];
+    this.since = new long[size];
+    this.held = new TxnMap<>();
+  }
+
+  public boolean isLocked(int key){
+    return owner[key - firstKey] != null;
+  }
+
+  public TxnId owner(int key){
+    return owner[key - firstKey];
+  }
+
+  // ms since the lock of the key was acquired
+  public long heldFor(int key){
+    return (System.nanoTime() - since[key - firstKey])/1000000;
+  }
+
+  // a txn could not lock the key, count it
+  public void conflict(){
+    conflicts++;
+  }
+
+  // lock all the writes of the txn (check first that they are free)
+  public void lockAll(TxnId txn, TxnWorkspace ws){
+    int[] keys = new int[ws.writeSize()];
+    long now = System.nanoTime();
+    for(int i=0; i<keys.length; i++){
+      keys[i] = ws.writeKey(i);
+      owner[keys[i] - firstKey] = txn;
+      since[keys[i] - firstKey] = now;
+    }
+    held.put(txn, keys);
+    acquired += keys.length;
+  }
+
+  // release all the locks of the txn (if any)
+  public void releaseAll(TxnId txn){
+    int[] keys = held.remove(txn);
+    if(keys == null) return;
+    long now = System.nanoTime();
+    for(int key : keys){
+      int o = key - firstKey;
+      long time = now - since[o];
+      holdTime += time;
+      maxHoldTime = Math.max(maxHoldTime, time);
+      owner[o] = null;
+    }
+  }
+
+  public String stats(){
+    long released = acquired - locked();
+    return acquired + " locks, " + conflicts + " conflicts, hold time avg "
+           + (released == 0 ? 0 : holdTime/released/1000000) + " ms max " + maxHoldTime/1000000 + " ms";
+  }
+
+  // number of keys locked now
+  private int locked(){
+    int n = 0;
+    for(int[] keys : held.values()){
+      n += keys.length;
+    }
+    return n;
+  }
+}
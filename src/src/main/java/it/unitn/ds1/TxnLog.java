@@ -0,0 +1,199 @@
+package it.unitn.ds1;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+
+import akka.actor.ActorRef;
+import akka.serialization.Serialization;
+
+import it.unitn.ds1.TxnCoordinator.TxnId;
+
+// append-only write-ahead log of a server
+// records are buffered in memory and made durable together with a single fsync (group commit)
+// record = {type, txn, ...}
+//   VOTE     -> {participants, write set {key, version, value}}
+//   DECISION -> {commit, commit timestamp}
+public class TxnLog {
+  private static final byte VOTE = 0;
+  private static final byte DECISION = 1;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final ByteArrayOutputStream buffer;   // records not yet written
+  private final DataOutputStream out;
+  private long synced;                          // bytes of the log already durable
+
+  // statistics to measure the cost of the log
+  private long records;
+  private long syncs;
+  private long syncTime;   // ns spent writing and forcing the log
+
+  // replayed records are given back to the owner of the log
+  public interface Replay {
+    void onVote(long position, TxnId txn, Set<ActorRef> participants, int[] keys, int[] versions, int[] values);
+    void onDecision(TxnId txn, boolean commit, long timestamp);
+  }
+
+  // open a new empty log in the given file
+  public TxnLog(Path path) {
+    this.path = path;
+    this.buffer = new ByteArrayOutputStream();
+    this.out = new DataOutputStream(buffer);
+    try{
+      Files.createDirectories(path.getParent());
+      this.channel = FileChannel.open(path,
+              StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /*-- Append --------------------------------------------------------------- */
+
+  // log the YES vote of a transaction with its write set
+  // return the position of the record in the log
+  public long logVote(TxnId txn, Set<ActorRef> participants, TxnWorkspace ws){
+    long position = synced + buffer.size();
+    try{
+      out.writeByte(VOTE);
+      writeTxn(out, txn);
+      out.writeInt(participants.size());
+      for(ActorRef p : participants){
+        out.writeUTF(Serialization.serializedActorPath(p));
+      }
+      out.writeInt(ws.writeSize());
+      for(int i=0; i<ws.writeSize(); i++){
+        int key = ws.writeKey(i);
+        out.writeInt(key);
+        out.writeInt(ws.getVersion(key));
+        out.writeInt(ws.getValue(key));
+      }
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+    records++;
+    return position;
+  }
+
+  // log the final decision of a transaction
+  public void logDecision(TxnId txn, boolean commit, long timestamp){
+    try{
+      out.writeByte(DECISION);
+      writeTxn(out, txn);
+      out.writeBoolean(commit);
+      out.writeLong(timestamp);
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+    records++;
+  }
+
+  // also used by the decision log of the coordinators
+  static void writeTxn(DataOutputStream out, TxnId txn) throws IOException {
+    out.writeUTF(Serialization.serializedActorPath(txn.client));
+    out.writeUTF(Serialization.serializedActorPath(txn.coordinator));
+    out.writeInt(txn.clientId);
+    out.writeLong(txn.key);
+  }
+
+  // write all the buffered records and make them durable with one fsync
+  public void sync(){
+    if(buffer.size() == 0) return;
+    long start = System.nanoTime();
+    try{
+      ByteBuffer bb = ByteBuffer.wrap(buffer.toByteArray());
+      while(bb.hasRemaining()){
+        channel.write(bb);
+      }
+      channel.force(false);
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+    synced += buffer.size();
+    buffer.reset();
+    syncs++;
+    syncTime += System.nanoTime() - start;
+  }
+
+  // drop the records that were not synced yet (lost in a crash)
+  public void discard(){
+    buffer.reset();
+  }
+
+  // position of the end of the durable part of the log
+  public long syncedPosition(){
+    return synced;
+  }
+
+  /*-- Replay --------------------------------------------------------------- */
+
+  // read the log from the given position, stop at the end or at a truncated record
+  public void replay(long from, Function<String, ActorRef> resolver, Replay replay){
+    byte[] bytes;
+    try{
+      bytes = Files.readAllBytes(path);
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+    ByteArrayInputStream stream = new ByteArrayInputStream(bytes, (int) from, bytes.length - (int) from);
+    DataInputStream in = new DataInputStream(stream);
+    try{
+      while(stream.available() > 0){
+        long position = bytes.length - stream.available();
+        byte type = in.readByte();
+        TxnId txn = readTxn(in, resolver);
+        if(type == VOTE){
+          Set<ActorRef> participants = new HashSet<>();
+          int n = in.readInt();
+          for(int i=0; i<n; i++){
+            participants.add(resolver.apply(in.readUTF()));
+          }
+          int w = in.readInt();
+          int[] keys = new int[w];
+          int[] versions = new int[w];
+          int[] values = new int[w];
+          for(int i=0; i<w; i++){
+            keys[i] = in.readInt();
+            versions[i] = in.readInt();
+            values[i] = in.readInt();
+          }
+          replay.onVote(position, txn, participants, keys, versions, values);
+        }
+        else{
+          boolean commit = in.readBoolean();
+          replay.onDecision(txn, commit, in.readLong());
+        }
+      }
+    }catch (EOFException e){
+      // truncated record at the tail, it was never acknowledged
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  static TxnId readTxn(DataInputStream in, Function<String, ActorRef> resolver) throws IOException {
+    ActorRef client = resolver.apply(in.readUTF());
+    ActorRef coordinator = resolver.apply(in.readUTF());
+    int clientId = in.readInt();
+    return new TxnId(client, coordinator, clientId, in.readLong());
+  }
+
+  /*-- Statistics ----------------------------------------------------------- */
+
+  public String stats(){
+    return records + " records, " + syncs + " fsyncs, "
+           + (syncs == 0 ? 0 : syncTime/syncs/1000) + " us per fsync";
+  }
+
+  public void close(){
+    try{
+      channel.close();
+    }catch (IOException e){
+      System.err.println(e);
+    }
+  }
+}
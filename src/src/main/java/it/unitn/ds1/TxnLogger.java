@@ -0,0 +1,121 @@
+package it.unitn.ds1;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.Supplier;
+
+// leveled log of the whole system, written to stdout by a background thread
+// a message is built only if its level is enabled (call sites pass a lambda), then it is put
+// in a ring buffer; the writer takes all the lines queued at once and writes them in a single
+// flush, so the actors never wait for stdout unless the ring is full. Lines are never dropped
+// (Check reads them) and keep the order in which they were logged.
+public class TxnLogger {
+  public enum Level {
+    Check,        // outcomes read by the checker
+    Termination,  // termination protocol and recoveries of the decisions
+    Crash,        // crashes and recoveries
+    Verbose       // everything else
+  }
+
+  private static final int capacity = 1 << 16;   // lines in the ring
+
+  // the levels printed in every mode: Verbose prints all of them, Termination the termination
+  // protocol and the outcomes (not the crashes), Check only the outcomes
+  private static final Set<Level> levels = TxnSystem.logMode.equals("Verbose") ? EnumSet.allOf(Level.class)
+                                         : TxnSystem.logMode.equals("Termination") ? EnumSet.of(Level.Check, Level.Termination)
+                                         : TxnSystem.logMode.equals("Check") ? EnumSet.of(Level.Check)
+                                         : EnumSet.noneOf(Level.class);
+
+  private static final String[] ring = new String[capacity];
+  private static long head;   // next line to write
+  private static long tail;   // next free slot
+  private static final Object lock = new Object();
+  private static final PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+
+  // statistics
+  private static long batches;
+  private static long waits;    // lines logged with the ring full
+
+  static {
+    Thread writer = new Thread(TxnLogger::write, "txn-logger");
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(TxnLogger::flush));
+  }
+
+  public static boolean enabled(Level level){
+    return levels.contains(level);
+  }
+
+  public static void log(Level level, Supplier<String> msg){
+    if(enabled(level)) append(msg.get());
+  }
+
+  public static void log(Level level, String msg){
+    if(enabled(level)) append(msg);
+  }
+
+  private static void append(String line){
+    synchronized(lock){
+      while(tail - head == capacity){   // full: wait for the writer
+        waits++;
+        try{
+          lock.wait();
+        }catch (InterruptedException e){
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      ring[(int) (tail++ & (capacity - 1))] = line;
+      if(tail - head == 1) lock.notifyAll();   // it was empty, wake up the writer
+    }
+  }
+
+  // body of the writer thread
+  private static void write(){
+    while(true){
+      synchronized(lock){
+        while(head == tail){
+          try{
+            lock.wait();
+          }catch (InterruptedException e){
+            return;
+          }
+        }
+      }
+      drain();
+    }
+  }
+
+  // write all the lines queued so far with a single flush (one drain at a time)
+  private static synchronized void drain(){
+    long from, to;
+    synchronized(lock){
+      from = head;
+      to = tail;
+    }
+    if(from == to) return;
+    for(long i=from; i<to; i++){
+      int slot = (int) (i & (capacity - 1));
+      out.println(ring[slot]);
+      ring[slot] = null;
+    }
+    out.flush();
+    synchronized(lock){
+      head = to;
+      batches++;
+      lock.notifyAll();   // producers waiting for space
+    }
+  }
+
+  // write what is still queued (at exit)
+  public static void flush(){
+    drain();
+  }
+
+  public static String stats(){
+    synchronized(lock){
+      return batches + " batches written, " + waits + " waits on a full ring";
+    }
+  }
+}
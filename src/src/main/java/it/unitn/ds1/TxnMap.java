@@ -0,0 +1,191 @@
+package it.unitn.ds1;
+
+import java.util.*;
+
+import it.unitn.ds1.TxnCoordinator.TxnId;
+
+// map from transactions to their state, open addressing on the 64-bit txn ids
+// the ids are probed in a primitive long array (linear probing, no boxing, no entry objects);
+// the TxnId objects are kept alongside only to give them back when iterating.
+// Removal shifts back the following entries, so there are no tombstones; the iterators
+// support remove in the same way.
+public class TxnMap<V> extends AbstractMap<TxnId, V> {
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] keys;
+  private TxnId[] txns;     // null if the slot is free
+  private Object[] values;
+  private int size;
+  private int mask;
+
+  public TxnMap() {
+    allocate(MIN_CAPACITY);
+  }
+
+  private void allocate(int capacity){
+    keys = new long[capacity];
+    txns = new TxnId[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+  }
+
+  // spread the bits of the id (coordinator and epoch are in the high bits)
+  private static int hash(long key){
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+  private int slot(long key){
+    int i = hash(key) & mask;
+    while(txns[i] != null && keys[i] != key){
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  @Override
+  public int size(){
+    return size;
+  }
+
+  @Override
+  public boolean containsKey(Object txn){
+    return txn instanceof TxnId && txns[slot(((TxnId) txn).key)] != null;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(Object txn){
+    if(!(txn instanceof TxnId)) return null;
+    return (V) values[slot(((TxnId) txn).key)];
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V put(TxnId txn, V value){
+    int i = slot(txn.key);
+    V old = (V) values[i];
+    if(txns[i] == null){
+      if(2*(size + 1) > keys.length){   // keep the load under 1/2
+        grow();
+        i = slot(txn.key);
+      }
+      keys[i] = txn.key;
+      txns[i] = txn;
+      size++;
+    }
+    values[i] = value;
+    return old;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V remove(Object txn){
+    if(!(txn instanceof TxnId)) return null;
+    int i = slot(((TxnId) txn).key);
+    if(txns[i] == null) return null;
+    V old = (V) values[i];
+    delete(i);
+    return old;
+  }
+
+  // free the slot and move back the entries of the same run that would not be found anymore
+  private void delete(int i){
+    int j = i;
+    while(true){
+      j = (j + 1) & mask;
+      if(txns[j] == null) break;
+      int home = hash(keys[j]) & mask;
+      // the entry in j can fill i only if its home slot is not between i (excluded) and j
+      if((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))){
+        keys[i] = keys[j];
+        txns[i] = txns[j];
+        values[i] = values[j];
+        i = j;
+      }
+    }
+    txns[i] = null;
+    values[i] = null;
+    size--;
+  }
+
+  // a free slot (the load is under 1/2)
+  private int free(){
+    int i = 0;
+    while(txns[i] != null) i++;
+    return i;
+  }
+
+  private void grow(){
+    long[] oldKeys = keys;
+    TxnId[] oldTxns = txns;
+    Object[] oldValues = values;
+    allocate(keys.length*2);
+    for(int i=0; i<oldKeys.length; i++){
+      if(oldTxns[i] == null) continue;
+      int j = slot(oldKeys[i]);
+      keys[j] = oldKeys[i];
+      txns[j] = oldTxns[i];
+      values[j] = oldValues[i];
+    }
+  }
+
+  @Override
+  public void clear(){
+    Arrays.fill(txns, null);
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  @Override
+  public Set<Map.Entry<TxnId, V>> entrySet(){
+    return new AbstractSet<Map.Entry<TxnId, V>>() {
+      @Override
+      public int size(){
+        return size;
+      }
+
+      @Override
+      public Iterator<Map.Entry<TxnId, V>> iterator(){
+        // the slots are walked from a free one, so no run of entries wraps around the walk:
+        // a removal only shifts back entries not given yet, at most into the removed slot
+        return new Iterator<Map.Entry<TxnId, V>>() {
+          private final int start = free();
+          private int next = advance(0);   // slots walked from start
+          private int last = -1;           // slots walked to the entry given last, -1 if removed
+
+          private int advance(int k){
+            while(k < txns.length && txns[(start + k) & mask] == null) k++;
+            return k;
+          }
+
+          @Override
+          public boolean hasNext(){
+            return next < txns.length;
+          }
+
+          @Override
+          @SuppressWarnings("unchecked")
+          public Map.Entry<TxnId, V> next(){
+            if(!hasNext()) throw new NoSuchElementException();
+            int i = (start + next) & mask;
+            Map.Entry<TxnId, V> e = new AbstractMap.SimpleImmutableEntry<>(txns[i], (V) values[i]);
+            last = next;
+            next = advance(next + 1);
+            return e;
+          }
+
+          @Override
+          public void remove(){
+            if(last < 0) throw new IllegalStateException();
+            delete((start + last) & mask);
+            next = advance(last);   // an entry may have been shifted back into the slot
+            last = -1;
+          }
+        };
+      }
+    };
+  }
+}
@@ -0,0 +1,101 @@
+package it.unitn.ds1;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import akka.actor.*;
+import scala.concurrent.duration.Duration;
+
+// simulated network link of a single node (child of the coordinator/server)
+// messages are held here for their delay instead of sleeping in the sender,
+// and are delivered in sending order for every receiver (FIFO links)
+public class TxnNetwork extends AbstractActor {
+  private final Map<ActorRef, Deque<SendMsg>> pending;   // messages in flight for every receiver, in sending order
+  private final Map<ActorRef, Deque<Long>> deadlines;    // delivery time of every message in flight, same order
+
+  /*-- Actor constructor ---------------------------------------------------- */
+
+  public TxnNetwork() {
+    this.pending = new HashMap<>();
+    this.deadlines = new HashMap<>();
+  }
+
+  static public Props props() {
+    return Props.create(TxnNetwork.class, TxnNetwork::new);
+  }
+
+  /*-- Message classes ------------------------------------------------------ */
+
+  // message to deliver to the receiver after the given delay
+  public static class SendMsg implements Serializable {
+    public final Object msg;
+    public final ActorRef sender;
+    public final ActorRef receiver;
+    public final int delay;
+    public SendMsg(Object msg, ActorRef sender, ActorRef receiver, int delay) {
+      this.msg = msg;
+      this.sender = sender;
+      this.receiver = receiver;
+      this.delay = delay;
+    }
+  }
+
+  // deliver all the messages for the receiver up to the given deadline
+  public static class FlushMsg implements Serializable {
+    public final ActorRef receiver;
+    public final long deadline;
+    public FlushMsg(ActorRef receiver, long deadline) {
+      this.receiver = receiver;
+      this.deadline = deadline;
+    }
+  }
+
+  /*-- Message handlers ----------------------------------------------------- */
+
+  private void onSendMsg(SendMsg msg) {
+    long now = System.nanoTime();
+
+    // a message can't overtake the previous one on the same link
+    long deadline = now + TimeUnit.MILLISECONDS.toNanos(msg.delay);
+    pending.putIfAbsent(msg.receiver, new ArrayDeque<>());
+    deadlines.putIfAbsent(msg.receiver, new ArrayDeque<>());
+    Long last = deadlines.get(msg.receiver).peekLast();
+    if(last != null && last > deadline) deadline = last;
+
+    pending.get(msg.receiver).add(msg);
+    deadlines.get(msg.receiver).add(deadline);
+
+    getContext().system().scheduler().scheduleOnce(
+            Duration.create(deadline - now, TimeUnit.NANOSECONDS),
+            getSelf(),
+            new FlushMsg(msg.receiver, deadline), // message sent to myself
+            getContext().system().dispatcher(), getSelf()
+    );
+  }
+
+  private void onFlushMsg(FlushMsg msg) {
+    Deque<SendMsg> queue = pending.get(msg.receiver);
+    if(queue == null) return;
+    Deque<Long> queueDeadlines = deadlines.get(msg.receiver);
+
+    // deadlines on a link never decrease, so everything up to this one is due
+    while(!queue.isEmpty() && queueDeadlines.peek() <= msg.deadline){
+      SendMsg m = queue.poll();
+      queueDeadlines.poll();
+      m.receiver.tell(TxnSerializer.overTheWire(getContext().system(), m.msg), m.sender);
+    }
+    if(queue.isEmpty()){
+      pending.remove(msg.receiver);
+      deadlines.remove(msg.receiver);
+    }
+  }
+
+  @Override
+  public Receive createReceive() {
+    return receiveBuilder()
+            .match(SendMsg.class,  this::onSendMsg)
+            .match(FlushMsg.class,  this::onFlushMsg)
+            .build();
+  }
+}
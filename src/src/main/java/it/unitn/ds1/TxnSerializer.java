@@ -0,0 +1,537 @@
+package it.unitn.ds1;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import akka.actor.*;
+import akka.serialization.ByteBufferSerializer;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.SerializerWithStringManifest;
+
+import it.unitn.ds1.TxnClient.*;
+import it.unitn.ds1.TxnCoordinator.*;
+import it.unitn.ds1.TxnServer.*;
+import it.unitn.ds1.TxnSystem.CrashServerMsg;
+import it.unitn.ds1.TxnSystem.CrashCoordMsg;
+
+// compact binary encoding of the messages exchanged by clients, coordinators and servers
+// (the messages an actor sends to itself never leave it and are not bound)
+// a message is {fields} and its manifest is the code of its class; the integers are varints,
+// a txn id is {client, coordinator, clientId, coordId, epoch, id} and an actor of the system
+// (txnClientN, txnCoordinatorN, txnServerN) is interned as {role, N} instead of its path.
+// Artery writes into its pooled buffers, toBinary uses a buffer kept by every thread.
+public class TxnSerializer extends SerializerWithStringManifest implements ByteBufferSerializer {
+
+  // codes of the messages, in the order of the manifests
+  private static final List<Class<?>> messages = Arrays.asList(
+          WelcomeClientMsg.class, StopMsg.class, TxnAcceptMsg.class, TxnBusyMsg.class,
+          TxnBeginMsg.class, TxnEndMsg.class, ReadMsg.class, WriteMsg.class,
+          TransferMsg.class, TransferResultMsg.class, ReadSetMsg.class, ReadResultMsg.class,
+          TxnResultMsg.class, WelcomeCoordMsg.class, FwdReadMsg.class, FwdWriteMsg.class,
+          FwdTransferMsg.class, OpBatchMsg.class, CanCommitMsg.class, OnePhaseCommitMsg.class,
+          FinalDecisionMsg.class, DecisionBatchMsg.class, FwdReadResultMsg.class, DepositMsg.class,
+          FwdTransferResultMsg.class, ResultBatchMsg.class, ServerDecisionMsg.class, OnePhaseResultMsg.class,
+          ParticipantsDecisionMsg.class, ParticipantsDecisionBatchMsg.class, FwdParticipantsDecisionMsg.class,
+          FwdParticipantsDecisionBatchMsg.class, DecisionAckMsg.class, CrashServerMsg.class, CrashCoordMsg.class);
+
+  private static final String[] roles = {null, "txnClient", "txnCoordinator", "txnServer"};
+  private static final byte NO_REF = 0;
+  private static final byte PATH = 4;   // an actor not interned
+
+  private final ExtendedActorSystem system;
+  private final Address local;
+  private final Map<Class<?>, Integer> codes;
+  private final Map<Integer, ActorRef> interned;   // role*2^16 + N -> actor
+  private final ThreadLocal<ByteBuffer> buffers;
+
+  // statistics
+  private final LongAdder encoded = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder encodeTime = new LongAdder();   // ns
+  private final LongAdder decodeTime = new LongAdder();   // ns
+  private final LongAdder txns = new LongAdder();         // TxnAcceptMsg encoded
+
+  public TxnSerializer(ExtendedActorSystem system) {
+    this.system = system;
+    this.local = system.provider().getDefaultAddress();
+    this.codes = new HashMap<>();
+    for(int i=0; i<messages.size(); i++){
+      codes.put(messages.get(i), i);
+    }
+    this.interned = new ConcurrentHashMap<>();
+    this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+  }
+
+  // configuration binding every message to this serializer
+  public static String config(){
+    StringBuilder sb = new StringBuilder();
+    sb.append("akka.actor.serializers.txn = \"").append(TxnSerializer.class.getName()).append("\"\n");
+    for(Class<?> c : messages){
+      sb.append("akka.actor.serialization-bindings.\"").append(c.getName()).append("\" = txn\n");
+    }
+    return sb.toString();
+  }
+
+  // send the message through its serializer as a transport would, the receiver gets the decoded copy
+  // (a message without a binding is given back as it is)
+  public static Object overTheWire(ActorSystem system, Object msg){
+    if(!TxnSystem.serializeMessages) return msg;
+    Serializer serializer = SerializationExtension.get(system).findSerializerFor(msg);
+    if(!(serializer instanceof TxnSerializer)) return msg;
+    TxnSerializer s = (TxnSerializer) serializer;
+    return s.fromBinary(s.toBinary(msg), s.manifest(msg));
+  }
+
+  @Override
+  public int identifier(){
+    return 0x54786e;
+  }
+
+  @Override
+  public String manifest(Object o){
+    return Integer.toString(code(o));
+  }
+
+  @Override
+  public byte[] toBinary(Object o){
+    ByteBuffer buf = buffers.get();
+    while(true){
+      buf.clear();
+      try{
+        toBinary(o, buf);
+        break;
+      }catch (BufferOverflowException e){   // grow the buffer of the thread and start again
+        buf = ByteBuffer.allocate(2*buf.capacity());
+        buffers.set(buf);
+      }
+    }
+    buf.flip();
+    byte[] out = new byte[buf.remaining()];
+    buf.get(out);
+    return out;
+  }
+
+  @Override
+  public void toBinary(Object o, ByteBuffer buf){
+    long start = System.nanoTime();
+    int from = buf.position();
+    write(o, buf);
+    encodeTime.add(System.nanoTime() - start);
+    encoded.increment();
+    bytes.add(buf.position() - from);
+    if(o instanceof TxnAcceptMsg) txns.increment();
+  }
+
+  @Override
+  public Object fromBinary(byte[] bytes, String manifest){
+    return fromBinary(ByteBuffer.wrap(bytes), manifest);
+  }
+
+  @Override
+  public Object fromBinary(ByteBuffer buf, String manifest){
+    long start = System.nanoTime();
+    Object msg = read(Integer.parseInt(manifest), buf);
+    decodeTime.add(System.nanoTime() - start);
+    return msg;
+  }
+
+  public String stats(){
+    long n = encoded.sum();
+    long t = txns.sum();
+    return n + " messages, " + bytes.sum() + " bytes, " + (n == 0 ? 0 : bytes.sum()/n) + " bytes per message, "
+           + (t == 0 ? 0 : bytes.sum()/t) + " bytes per txn, encode " + (n == 0 ? 0 : encodeTime.sum()/n)
+           + " ns decode " + (n == 0 ? 0 : decodeTime.sum()/n) + " ns per message";
+  }
+
+  private int code(Object o){
+    Integer code = codes.get(o.getClass());
+    if(code == null) throw new IllegalArgumentException("Cannot serialize " + o.getClass().getName());
+    return code;
+  }
+
+  /*-- Messages ------------------------------------------------------------- */
+
+  private void write(Object o, ByteBuffer buf){
+    switch(code(o)){
+      case 0: {
+        WelcomeClientMsg m = (WelcomeClientMsg) o;
+        putVarint(buf, m.maxKey);
+        putRefs(buf, m.coordinators);
+        break;
+      }
+      case 1: break;
+      case 2: {
+        TxnAcceptMsg m = (TxnAcceptMsg) o;
+        putVarlong(buf, m.txn);
+        putVarint(buf, m.load);
+        break;
+      }
+      case 3: putVarint(buf, ((TxnBusyMsg) o).load); break;
+      case 4: {
+        TxnBeginMsg m = (TxnBeginMsg) o;
+        putVarint(buf, m.clientId);
+        buf.put((byte) (m.readOnly ? 1 : 0));
+        break;
+      }
+      case 5: {
+        TxnEndMsg m = (TxnEndMsg) o;
+        putVarint(buf, m.clientId);
+        buf.put((byte) (m.commit ? 1 : 0));
+        break;
+      }
+      case 6: {
+        ReadMsg m = (ReadMsg) o;
+        putVarint(buf, m.clientId);
+        putVarint(buf, m.key);
+        break;
+      }
+      case 7: {
+        WriteMsg m = (WriteMsg) o;
+        putVarint(buf, m.clientId);
+        putVarint(buf, m.key);
+        putSigned(buf, m.value);
+        break;
+      }
+      case 8: {
+        TransferMsg m = (TransferMsg) o;
+        putVarint(buf, m.clientId);
+        putVarint(buf, m.fromKey);
+        putVarint(buf, m.toKey);
+        break;
+      }
+      case 9: {
+        TransferResultMsg m = (TransferResultMsg) o;
+        putVarint(buf, m.fromKey);
+        putVarint(buf, m.toKey);
+        putSigned(buf, m.amount);
+        break;
+      }
+      case 10: {
+        ReadSetMsg m = (ReadSetMsg) o;
+        putVarint(buf, m.clientId);
+        putVarint(buf, m.keys.size());
+        for(int key : m.keys){
+          putVarint(buf, key);
+        }
+        break;
+      }
+      case 11: {
+        ReadResultMsg m = (ReadResultMsg) o;
+        putVarint(buf, m.key);
+        putSigned(buf, m.value);
+        break;
+      }
+      case 12: {
+        TxnResultMsg m = (TxnResultMsg) o;
+        buf.put((byte) (m.commit ? 1 : 0));
+        putVarlong(buf, m.txn);
+        putVarint(buf, m.load);
+        break;
+      }
+      case 13: putRefs(buf, ((WelcomeCoordMsg) o).servers); break;
+      case 14: {
+        FwdReadMsg m = (FwdReadMsg) o;
+        putVarint(buf, m.key);
+        putTxn(buf, m.txn);
+        putVarlong(buf, m.snapshot);
+        break;
+      }
+      case 15: {
+        FwdWriteMsg m = (FwdWriteMsg) o;
+        putVarint(buf, m.key);
+        putSigned(buf, m.value);
+        putTxn(buf, m.txn);
+        break;
+      }
+      case 16: {
+        FwdTransferMsg m = (FwdTransferMsg) o;
+        putVarint(buf, m.fromKey);
+        putVarint(buf, m.toKey);
+        putRef(buf, m.toServer);
+        putTxn(buf, m.txn);
+        break;
+      }
+      case 17: putNested(buf, ((OpBatchMsg) o).ops); break;
+      case 18: {
+        CanCommitMsg m = (CanCommitMsg) o;
+        putTxn(buf, m.txn);
+        putRefs(buf, m.participants);
+        putVarint(buf, m.writes);
+        break;
+      }
+      case 19: {
+        OnePhaseCommitMsg m = (OnePhaseCommitMsg) o;
+        putTxn(buf, m.txn);
+        putVarint(buf, m.writes);
+        break;
+      }
+      case 20: {
+        FinalDecisionMsg m = (FinalDecisionMsg) o;
+        buf.put((byte) (m.decision ? 1 : 0));
+        putTxn(buf, m.txn);
+        putVarint(buf, m.watermark);
+        putVarlong(buf, m.timestamp);
+        break;
+      }
+      case 21: putNested(buf, ((DecisionBatchMsg) o).decisions); break;
+      case 22: {
+        FwdReadResultMsg m = (FwdReadResultMsg) o;
+        putVarint(buf, m.key);
+        putSigned(buf, m.value);
+        putTxn(buf, m.txn);
+        break;
+      }
+      case 23: {
+        DepositMsg m = (DepositMsg) o;
+        putVarint(buf, m.fromKey);
+        putVarint(buf, m.toKey);
+        putSigned(buf, m.amount);
+        putTxn(buf, m.txn);
+        break;
+      }
+      case 24: {
+        FwdTransferResultMsg m = (FwdTransferResultMsg) o;
+        putVarint(buf, m.fromKey);
+        putVarint(buf, m.toKey);
+        putSigned(buf, m.amount);
+        putTxn(buf, m.txn);
+        break;
+      }
+      case 25: putNested(buf, ((ResultBatchMsg) o).results); break;
+      case 26: {
+        ServerDecisionMsg m = (ServerDecisionMsg) o;
+        buf.put((byte) ((m.commit ? 1 : 0) | (m.readOnly ? 2 : 0)));
+        putTxn(buf, m.txn);
+        putVarlong(buf, m.timestamp);
+        break;
+      }
+      case 27: {
+        OnePhaseResultMsg m = (OnePhaseResultMsg) o;
+        buf.put((byte) (m.commit ? 1 : 0));
+        putTxn(buf, m.txn);
+        putVarlong(buf, m.timestamp);
+        break;
+      }
+      case 28: putTxn(buf, ((ParticipantsDecisionMsg) o).txn); break;
+      case 29: {
+        List<TxnId> txns = ((ParticipantsDecisionBatchMsg) o).txns;
+        putVarint(buf, txns.size());
+        for(TxnId txn : txns){
+          putTxn(buf, txn);
+        }
+        break;
+      }
+      case 30: {
+        FwdParticipantsDecisionMsg m = (FwdParticipantsDecisionMsg) o;
+        buf.put((byte) (m.decision ? 1 : 0));
+        putTxn(buf, m.txn);
+        putVarlong(buf, m.timestamp);
+        break;
+      }
+      case 31: putNested(buf, ((FwdParticipantsDecisionBatchMsg) o).decisions); break;
+      case 32: putTxn(buf, ((DecisionAckMsg) o).txn); break;
+      case 33: {
+        CrashServerMsg m = (CrashServerMsg) o;
+        putVarint(buf, m.nextCrash.ordinal());
+        putVarint(buf, m.timeCrashed);
+        break;
+      }
+      case 34: {
+        CrashCoordMsg m = (CrashCoordMsg) o;
+        putVarint(buf, m.nextCrash.ordinal());
+        putVarint(buf, m.timeCrashed);
+        break;
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private Object read(int code, ByteBuffer buf){
+    switch(code){
+      case 0: return new WelcomeClientMsg(getVarint(buf), getRefs(buf, new ArrayList<>()));
+      case 1: return new StopMsg();
+      case 2: return new TxnAcceptMsg(getVarlong(buf), getVarint(buf));
+      case 3: return new TxnBusyMsg(getVarint(buf));
+      case 4: return new TxnBeginMsg(getVarint(buf), buf.get() == 1);
+      case 5: return new TxnEndMsg(getVarint(buf), buf.get() == 1);
+      case 6: return new ReadMsg(getVarint(buf), getVarint(buf));
+      case 7: return new WriteMsg(getVarint(buf), getVarint(buf), getSigned(buf));
+      case 8: return new TransferMsg(getVarint(buf), getVarint(buf), getVarint(buf));
+      case 9: return new TransferResultMsg(getVarint(buf), getVarint(buf), getSigned(buf));
+      case 10: {
+        int clientId = getVarint(buf);
+        int n = getVarint(buf);
+        List<Integer> keys = new ArrayList<>(n);
+        for(int i=0; i<n; i++){
+          keys.add(getVarint(buf));
+        }
+        return new ReadSetMsg(clientId, keys);
+      }
+      case 11: return new ReadResultMsg(getVarint(buf), getSigned(buf));
+      case 12: return new TxnResultMsg(buf.get() == 1, getVarlong(buf), getVarint(buf));
+      case 13: return new WelcomeCoordMsg(getRefs(buf, new ArrayList<>()));
+      case 14: return new FwdReadMsg(getVarint(buf), getTxn(buf), getVarlong(buf));
+      case 15: return new FwdWriteMsg(getVarint(buf), getSigned(buf), getTxn(buf));
+      case 16: return new FwdTransferMsg(getVarint(buf), getVarint(buf), getRef(buf), getTxn(buf));
+      case 17: return new OpBatchMsg(getNested(buf));
+      case 18: return new CanCommitMsg(getTxn(buf), getRefs(buf, new HashSet<>()), getVarint(buf));
+      case 19: return new OnePhaseCommitMsg(getTxn(buf), getVarint(buf));
+      case 20: return new FinalDecisionMsg(buf.get() == 1, getTxn(buf), getVarint(buf), getVarlong(buf));
+      case 21: return new DecisionBatchMsg((List<FinalDecisionMsg>) (List<?>) getNested(buf));
+      case 22: return new FwdReadResultMsg(getVarint(buf), getSigned(buf), getTxn(buf));
+      case 23: return new DepositMsg(getVarint(buf), getVarint(buf), getSigned(buf), getTxn(buf));
+      case 24: return new FwdTransferResultMsg(getVarint(buf), getVarint(buf), getSigned(buf), getTxn(buf));
+      case 25: return new ResultBatchMsg(getNested(buf));
+      case 26: {
+        byte flags = buf.get();
+        return new ServerDecisionMsg((flags & 1) != 0, (flags & 2) != 0, getTxn(buf), getVarlong(buf));
+      }
+      case 27: return new OnePhaseResultMsg(buf.get() == 1, getTxn(buf), getVarlong(buf));
+      case 28: return new ParticipantsDecisionMsg(getTxn(buf));
+      case 29: {
+        int n = getVarint(buf);
+        List<TxnId> txns = new ArrayList<>(n);
+        for(int i=0; i<n; i++){
+          txns.add(getTxn(buf));
+        }
+        return new ParticipantsDecisionBatchMsg(txns);
+      }
+      case 30: return new FwdParticipantsDecisionMsg(buf.get() == 1, getTxn(buf), getVarlong(buf));
+      case 31: return new FwdParticipantsDecisionBatchMsg((List<FwdParticipantsDecisionMsg>) (List<?>) getNested(buf));
+      case 32: return new DecisionAckMsg(getTxn(buf));
+      case 33: return new CrashServerMsg(TxnServer.CrashServerType.values()[getVarint(buf)], getVarint(buf));
+      case 34: return new CrashCoordMsg(TxnCoordinator.CrashCoordType.values()[getVarint(buf)], getVarint(buf));
+      default: throw new IllegalArgumentException("Unknown manifest " + code);
+    }
+  }
+
+  // messages inside a batch: {count, {code, message}...}
+  private void putNested(ByteBuffer buf, List<?> msgs){
+    putVarint(buf, msgs.size());
+    for(Object msg : msgs){
+      putVarint(buf, code(msg));
+      write(msg, buf);
+    }
+  }
+
+  private List<Object> getNested(ByteBuffer buf){
+    int n = getVarint(buf);
+    List<Object> msgs = new ArrayList<>(n);
+    for(int i=0; i<n; i++){
+      msgs.add(read(getVarint(buf), buf));
+    }
+    return msgs;
+  }
+
+  /*-- Txn ids and actors --------------------------------------------------- */
+
+  private void putTxn(ByteBuffer buf, TxnId txn){
+    putRef(buf, txn.client);
+    putRef(buf, txn.coordinator);
+    putVarint(buf, txn.clientId);
+    putVarint(buf, txn.coordId());
+    putVarint(buf, txn.epoch());
+    putVarint(buf, txn.id);
+  }
+
+  private TxnId getTxn(ByteBuffer buf){
+    ActorRef client = getRef(buf);
+    ActorRef coordinator = getRef(buf);
+    return new TxnId(client, coordinator, getVarint(buf), getVarint(buf), getVarint(buf), getVarint(buf));
+  }
+
+  // {role, N} for an actor of the system, {PATH, path} for any other
+  private void putRef(ByteBuffer buf, ActorRef ref){
+    if(ref == null){
+      buf.put(NO_REF);
+      return;
+    }
+    ActorPath path = ref.path();
+    if(path.address().equals(local) && path.parent().name().equals("user")){
+      String name = path.name();
+      for(int role=1; role<roles.length; role++){
+        if(name.startsWith(roles[role]) && name.length() > roles[role].length()){
+          buf.put((byte) role);
+          putVarint(buf, Integer.parseInt(name.substring(roles[role].length())));
+          return;
+        }
+      }
+    }
+    byte[] s = Serialization.serializedActorPath(ref).getBytes(StandardCharsets.UTF_8);
+    buf.put(PATH);
+    putVarint(buf, s.length);
+    buf.put(s);
+  }
+
+  private ActorRef getRef(ByteBuffer buf){
+    byte role = buf.get();
+    if(role == NO_REF) return null;
+    if(role == PATH){
+      byte[] s = new byte[getVarint(buf)];
+      buf.get(s);
+      return system.provider().resolveActorRef(new String(s, StandardCharsets.UTF_8));
+    }
+    int n = getVarint(buf);
+    return interned.computeIfAbsent((role << 16) | n,
+            k -> system.provider().resolveActorRef(local + "/user/" + roles[role] + n));
+  }
+
+  private <C extends Collection<ActorRef>> void putRefs(ByteBuffer buf, C refs){
+    putVarint(buf, refs.size());
+    for(ActorRef ref : refs){
+      putRef(buf, ref);
+    }
+  }
+
+  private <C extends Collection<ActorRef>> C getRefs(ByteBuffer buf, C refs){
+    int n = getVarint(buf);
+    for(int i=0; i<n; i++){
+      refs.add(getRef(buf));
+    }
+    return refs;
+  }
+
+  /*-- Varints -------------------------------------------------------------- */
+
+  // 7 bits per byte, the high bit set when more bytes follow
+  private static void putVarlong(ByteBuffer buf, long v){
+    while((v & ~0x7fL) != 0){
+      buf.put((byte) ((v & 0x7f) | 0x80));
+      v >>>= 7;
+    }
+    buf.put((byte) v);
+  }
+
+  private static long getVarlong(ByteBuffer buf){
+    long v = 0;
+    for(int shift=0; ; shift+=7){
+      byte b = buf.get();
+      v |= (long) (b & 0x7f) << shift;
+      if((b & 0x80) == 0) return v;
+    }
+  }
+
+  private static void putVarint(ByteBuffer buf, int v){
+    putVarlong(buf, v & 0xffffffffL);
+  }
+
+  private static int getVarint(ByteBuffer buf){
+    return (int) getVarlong(buf);
+  }
+
+  // zigzag: small negative values stay short
+  private static void putSigned(ByteBuffer buf, int v){
+    putVarint(buf, (v << 1) ^ (v >> 31));
+  }
+
+  private static int getSigned(ByteBuffer buf){
+    int v = getVarint(buf);
+    return (v >>> 1) ^ -(v & 1);
+  }
+}
@@ -1,7 +1,9 @@
 package it.unitn.ds1;
 
 import java.io.Serializable;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.concurrent.TimeUnit;
 
 import akka.actor.*;
@@ -11,23 +13,65 @@ import it.unitn.ds1.TxnCoordinator.TxnId;
 
 import it.unitn.ds1.TxnCoordinator.FwdReadMsg;
 import it.unitn.ds1.TxnCoordinator.FwdWriteMsg;
+import it.unitn.ds1.TxnCoordinator.FwdTransferMsg;
+import it.unitn.ds1.TxnCoordinator.OpBatchMsg;
 
 import it.unitn.ds1.TxnCoordinator.CanCommitMsg;
+import it.unitn.ds1.TxnCoordinator.OnePhaseCommitMsg;
 import it.unitn.ds1.TxnCoordinator.FinalDecisionMsg;
+import it.unitn.ds1.TxnCoordinator.DecisionBatchMsg;
 
 import it.unitn.ds1.TxnSystem.CrashServerMsg;
 import it.unitn.ds1.TxnSystem.RecoveryMsg;
 
+import it.unitn.ds1.TxnNetwork.SendMsg;
+
+import it.unitn.ds1.TxnTimers.Phase;
+import it.unitn.ds1.TxnTimers.TickMsg;
+
+import it.unitn.ds1.TxnLogger.Level;
+import static it.unitn.ds1.TxnLogger.Level.*;
+
 public class TxnServer extends AbstractActor {
   private final Integer serverId;
-  private final Map<Integer, Integer[]> dataStore;
-  private final Map<TxnId, Set<Integer[]>> workSpace;
+  private TxnDataStore dataStore;
+  private TxnLockTable locks;                               // write locks of the keys, with their owner txn
+  private final Map<TxnId, TxnWorkspace> workSpace;
   private final Map<TxnId, Set<ActorRef>> txnParticipants;  // map transactions with all its participants
-  private final Map<TxnId, Boolean> txnHistory;             // save an history of all the past transactions
-  private final Map<TxnId, Cancellable> decisionTimeout;    // contain a timeout for every transaction waiting for a decision
+  private final TxnHistory txnHistory;                      // save an history of the past transactions (until finished everywhere)
+  private final TxnTimers timers;                           // timeouts of the transactions waiting for a decision
+  private final TxnTimeouts timeouts;                       // response times of the coordinators and the other servers
+  private final Cancellable timerTick;
   private final Map<TxnId, String> txnState;                // follow the steps of a transaction (not voted, voted)
 
   private final Random r;
+  private final ActorRef network;                           // simulated network link used by sendReal
+  private List<Object> batchReplies;                        // replies to the batch being handled (null if none)
+  private ActorRef batchSender;
+
+  private final TxnLog wal;                                 // write-ahead log (null if not durable)
+  private final List<TxnId> pendingVotes;                   // YES votes waiting for the next log sync
+  private final List<TxnId> pendingAcks;                    // acks of decisions waiting for the next log sync
+  private final List<OnePhaseResultMsg> pendingResults;     // one-phase outcomes waiting for the next log sync
+  private final Map<TxnId, Long> pendingCommits;            // one-phase commits logged, applied at the next log sync
+  private boolean syncScheduled;
+  private final TxnCheckpoint checkpoint;                   // checkpoint of the datastore (null if not durable)
+  private final Map<TxnId, Long> votePosition;              // log position of the vote of every undecided txn
+  private final Map<TxnId, Long> onePhasePosition;          // log position of every one-phase commit not finished yet
+  private final Cancellable checkpointTimer;
+  private boolean checkpointing;                            // a checkpoint is being published
+  private long checkpointPosition;                          // log position of the last checkpoint published
+
+  private final TxnClock clock;
+  private TxnVersions versions;                             // committed versions for the snapshot reads (null if not MVCC)
+  private final List<FwdReadMsg> deferredReads;             // snapshot reads waiting for a locked key
+  private final Cancellable vacuumTimer;
+
+  private final TxnTrace trace;                             // binary trace of the events
+
+  private final Set<TxnId> inDoubt;                         // voted txns without a decision after a recovery
+  private int queryRound;                                   // recovery queries sent for them (the older retries are ignored)
+  private int queryBackoff;                                 // ms before the next recovery query
 
   enum CrashServerType {  // type of the next simulated crash
     NONE,
@@ -41,16 +85,55 @@ public class TxnServer extends AbstractActor {
   
   public TxnServer(int serverId) {
     this.serverId = serverId;
-    this.dataStore = new TreeMap<>();
-    this.workSpace = new HashMap<>();
-    this.txnParticipants = new HashMap<>();
-    this.txnHistory = new HashMap<>();
-    this.decisionTimeout = new HashMap<>();
-    this.txnState = new HashMap<>();
+    this.workSpace = new TxnMap<>();
+    this.txnParticipants = new TxnMap<>();
+    this.txnHistory = new TxnHistory();
+    this.timers = new TxnTimers(TxnSystem.timerTick, 512);
+    this.timeouts = new TxnTimeouts();
+    this.timerTick = getContext().system().scheduler().scheduleWithFixedDelay(
+            Duration.create(TxnSystem.timerTick, TimeUnit.MILLISECONDS),
+            Duration.create(TxnSystem.timerTick, TimeUnit.MILLISECONDS),
+            getSelf(),
+            new TickMsg(), // message sent to myself
+            getContext().system().dispatcher(), getSelf()
+    );
+    this.txnState = new TxnMap<>();
     this.r = new Random();
     this.r.setSeed(TxnSystem.seed*(serverId+1));
+    this.network = getContext().actorOf(TxnNetwork.props().withDispatcher(getContext().getProps().dispatcher()), "network");  // on the dispatcher of the node
     this.nextCrash = CrashServerType.NONE;
-    initDataStore();
+    this.inDoubt = Collections.newSetFromMap(new TxnMap<>());
+    this.trace = TxnTrace.open("txnServer" + serverId);
+    this.dataStore = initDataStore();
+    this.locks = initLocks();
+    this.wal = TxnSystem.walEnabled ? new TxnLog(Paths.get(TxnSystem.walDir, "txnServer" + serverId + ".log")) : null;
+    this.pendingVotes = new ArrayList<>();
+    this.pendingAcks = new ArrayList<>();
+    this.pendingResults = new ArrayList<>();
+    this.pendingCommits = new TxnMap<>();
+    this.syncScheduled = false;
+    this.checkpoint = TxnSystem.walEnabled ? new TxnCheckpoint(Paths.get(TxnSystem.walDir, "txnServer" + serverId + ".ckpt"), dataStore) : null;
+    this.votePosition = new TxnMap<>();
+    this.onePhasePosition = new TxnMap<>();
+    this.checkpointing = false;
+    this.checkpointPosition = 0;
+    this.checkpointTimer = TxnSystem.walEnabled ? getContext().system().scheduler().scheduleWithFixedDelay(
+            Duration.create(TxnSystem.checkpointTime, TimeUnit.MILLISECONDS),
+            Duration.create(TxnSystem.checkpointTime, TimeUnit.MILLISECONDS),
+            getSelf(),
+            new CheckpointMsg(), // message sent to myself
+            getContext().system().dispatcher(), getSelf()
+    ) : null;
+    this.clock = new TxnClock();
+    this.versions = TxnSystem.mvccEnabled ? new TxnVersions(dataStore, 0) : null;
+    this.deferredReads = new ArrayList<>();
+    this.vacuumTimer = TxnSystem.mvccEnabled ? getContext().system().scheduler().scheduleWithFixedDelay(
+            Duration.create(TxnSystem.vacuumTime, TimeUnit.MILLISECONDS),
+            Duration.create(TxnSystem.vacuumTime, TimeUnit.MILLISECONDS),
+            getSelf(),
+            new VacuumMsg(), // message sent to myself
+            getContext().system().dispatcher(), getSelf()
+    ) : null;
   }
 
   static public Props props(int serverId) {
@@ -59,10 +142,28 @@ public class TxnServer extends AbstractActor {
 
   /*-- Actor start logic ---------------------------------------------------- */
 
-  private void initDataStore(){
-    for (int i=10*this.serverId; i<=10*this.serverId+9; i++) {
-      this.dataStore.put(i, new Integer[] {0,100,0});
-    }    
+  // the server is in charge of the keys [10*serverId, 10*serverId+9], all starting from value 100
+  private TxnDataStore initDataStore(){
+    return new TxnDataStore(10*this.serverId, 10, 100);
+  }
+
+  private TxnLockTable initLocks(){
+    return new TxnLockTable(10*this.serverId, 10);
+  }
+
+  @Override
+  public void postStop() {
+    timerTick.cancel();
+    printLog(() -> "\t\t" + "SERVER " + serverId + " LOCKS " + locks.stats(), Verbose);
+    printLog(() -> "\t\t" + "SERVER " + serverId + " TIMEOUTS " + timeouts.stats(), Verbose);
+    printLog(() -> "\t\t" + "SERVER " + serverId + " TRACE " + trace.stats(), Verbose);
+    if(wal != null){
+      printLog(() -> "\t\t" + "SERVER " + serverId + " WAL " + wal.stats(), Verbose);
+      wal.close();
+      checkpointTimer.cancel();
+      checkpoint.close();
+    }
+    if(vacuumTimer != null) vacuumTimer.cancel();
   }
 
   /*-- Message classes ------------------------------------------------------ */
@@ -79,13 +180,67 @@ public class TxnServer extends AbstractActor {
     }
   }
 
+  // second half of a TRANSFER, from the server of the first key to the server of the second key
+  public static class DepositMsg implements Serializable {
+    public final Integer fromKey;
+    public final Integer toKey;
+    public final Integer amount; // the amount taken from fromKey, to add to toKey
+    public final TxnId txn;
+    public DepositMsg(int fromKey, int toKey, int amount, TxnId txn) {
+      this.fromKey = fromKey;
+      this.toKey = toKey;
+      this.amount = amount;
+      this.txn = txn;
+    }
+  }
+
+  // reply from the server of the second key when the TRANSFER is done
+  public static class FwdTransferResultMsg implements Serializable {
+    public final Integer fromKey;
+    public final Integer toKey;
+    public final Integer amount;
+    public final TxnId txn;
+    public FwdTransferResultMsg(int fromKey, int toKey, int amount, TxnId txn) {
+      this.fromKey = fromKey;
+      this.toKey = toKey;
+      this.amount = amount;
+      this.txn = txn;
+    }
+  }
+
+  // replies of the server to the operations of a batch
+  public static class ResultBatchMsg implements Serializable {
+    public final List<Object> results;
+    public ResultBatchMsg(List<Object> results) {
+      this.results = Collections.unmodifiableList(new ArrayList<>(results));
+    }
+  }
+
   // reply with commit decision
+  // a YES vote carries the timestamp of the server, the txn will commit after it
+  // a READ_ONLY vote (commit and readOnly) means the server has already forgotten the txn
   public static class ServerDecisionMsg implements Serializable {
     public final boolean commit;
+    public final boolean readOnly;
     public final TxnId txn;
-    public ServerDecisionMsg(boolean commit, TxnId txn) {
+    public final long timestamp;
+    public ServerDecisionMsg(boolean commit, boolean readOnly, TxnId txn, long timestamp) {
       this.commit = commit;
+      this.readOnly = readOnly;
       this.txn = txn;
+      this.timestamp = timestamp;
+    }
+  }
+
+  // outcome of a one-phase commit, the changes are already applied
+  public static class OnePhaseResultMsg implements Serializable {
+    public final boolean commit;
+    public final TxnId txn;
+    public final long timestamp; // commit timestamp (0 if aborted)
+    public OnePhaseResultMsg(boolean commit, TxnId txn, long timestamp) {
+      this.commit = commit;
+      this.txn = txn;
+      this.timestamp = timestamp;
     }
   }
 
@@ -105,167 +260,168 @@ public class TxnServer extends AbstractActor {
     }
   }
 
+  // ask to another participant the decisions of many txns at once (after a recovery)
+  public static class ParticipantsDecisionBatchMsg implements Serializable {
+    public final List<TxnId> txns;
+    public ParticipantsDecisionBatchMsg(List<TxnId> txns) {
+      this.txns = Collections.unmodifiableList(new ArrayList<>(txns));
+    }
+  }
+
+  // reply with all the decisions known among the ones asked
+  public static class FwdParticipantsDecisionBatchMsg implements Serializable {
+    public final List<FwdParticipantsDecisionMsg> decisions;
+    public FwdParticipantsDecisionBatchMsg(List<FwdParticipantsDecisionMsg> decisions) {
+      this.decisions = Collections.unmodifiableList(new ArrayList<>(decisions));
+    }
+  }
+
+  // retry the recovery query (if still in the same round)
+  public static class QueryRetryMsg implements Serializable {
+    public final int round;
+    public QueryRetryMsg(int round) {
+      this.round = round;
+    }
+  }
+
   // reply with commit decision to the other partecipant
   public static class FwdParticipantsDecisionMsg implements Serializable {
     public final boolean decision;
     public final TxnId txn;
-    public FwdParticipantsDecisionMsg(boolean decision, TxnId txn) {
+    public final long timestamp; // commit timestamp (0 if aborted)
+    public FwdParticipantsDecisionMsg(boolean decision, TxnId txn, long timestamp) {
       this.decision = decision;
       this.txn = txn;
+      this.timestamp = timestamp;
     }
   }
 
-  /*-- Actor methods -------------------------------------------------------- */
-  // print log 
-  private void printLog(String logString, String mode){
-    Set<String> logModeAllowed = new HashSet<>();
-    if(TxnSystem.logMode.equals("Verbose")){
-      logModeAllowed.add("Verbose"); logModeAllowed.add("Termination"); logModeAllowed.add("Crash"); logModeAllowed.add("Check"); 
-    }   
-    if(TxnSystem.logMode.equals("Termination")){
-      logModeAllowed.add("Termination"); logModeAllowed.add("Check"); 
-    }    
-    if(TxnSystem.logMode.equals("Check")){
-      logModeAllowed.add("Check"); 
-    } 
+  // tell the coordinator that the decision has been applied
+  public static class DecisionAckMsg implements Serializable {
+    public final TxnId txn;
+    public DecisionAckMsg(TxnId txn) {
+      this.txn = txn;
+    }
+  }
 
-    if(logModeAllowed.contains(mode)){
-      System.out.println(logString);
+  // write the buffered log records with a single fsync (group commit)
+  public static class LogSyncMsg implements Serializable {}
+
+  // take an incremental checkpoint of the datastore
+  public static class CheckpointMsg implements Serializable {}
+
+  // drop the old versions no snapshot can read anymore
+  public static class VacuumMsg implements Serializable {}
+
+  // the checkpoint is durable, replay after a crash starts from its log position
+  public static class CheckpointDoneMsg implements Serializable {
+    public final long position;
+    public final int pages;
+    public CheckpointDoneMsg(long position, int pages) {
+      this.position = position;
+      this.pages = pages;
     }
   }
+
+  /*-- Actor methods -------------------------------------------------------- */
+  // print log 
+  // the message is built only if its level is enabled
+  private void printLog(Supplier<String> log, Level level){
+    TxnLogger.log(level, log);
+  }
   
   // send messages with simulated network delays
+  // the delay is applied by the network child, so the actor is not blocked meanwhile
   private void sendReal(Object msg, ActorRef sender, ActorRef receiver){
-    try{
-      Thread.sleep((int)((r.nextDouble())*(TxnSystem.maxDelay - TxnSystem.minDelay)) + TxnSystem.minDelay);
-    }catch (InterruptedException e){
-      System.err.println(e);
-    }
-    receiver.tell(msg, sender);
+    int delay = (int)((r.nextDouble())*(TxnSystem.maxDelay - TxnSystem.minDelay)) + TxnSystem.minDelay;
+    network.tell(new SendMsg(msg, sender, receiver, delay), getSelf());
+  }
+
+  // reply to an operation of the coordinator
+  // while handling a batch from it, the reply goes in the batch of the replies
+  private void reply(Object msg, ActorRef coordinator){
+    if(batchReplies != null && coordinator.equals(batchSender)) batchReplies.add(msg);
+    else sendReal(msg, getSelf(), coordinator);
+  }
+
+  // create an empty workspace over the keys of the server
+  private TxnWorkspace newWorkspace(){
+    return new TxnWorkspace(10*this.serverId, 10);
   }
 
   // get value for a given key
   // if the key has already been touched in this transaction,
   // return the value from the workspace (otw there is inconsistency)
   // else return the value from the datastore
-  private Integer getValueFromKey(Integer key, Set<Integer[]> changes){
-    for(Integer[] c : changes){ // c = {key, version, value, r/w}
-      if(c[0].equals(key)){
-        return c[2];
-      }
-    }
-    return dataStore.get(key)[1]; // dataStore.get(key) = {version, value, lock}
+  private int getValueFromKey(int key, TxnWorkspace ws){
+    if(ws.contains(key)) return ws.getValue(key);
+    return dataStore.getValue(key);
   }
 
   // get version for a given key (datastore only)
-  private Integer getVersionFromKey(Integer key){
-    return dataStore.get(key)[0];
-  }
-  
-  // add a new read operation in the txn workspace
-  // if the key is not already in the txn workspace
-  // put a read operation (last value = 0) with the current version found
-  // else do nothing
-  private void addWorkspace(Integer key, Integer version, Integer value, Set<Integer[]> changes){
-    Boolean inWorkspace = false;
-    for(Integer[] c : changes){
-      if(c[0].equals(key)){
-        inWorkspace = true;
-        break;
-      }
-    }
-    if(!inWorkspace){ 
-      changes.add(new Integer[] {key, version, value, 0});
-    }
-  }
-
-  // update the workspace of a given transaction
-  // search for the read operation put before
-  // change the version (only in the first change from read/write), 
-  //        the value
-  //        set write
-  private void updateWorkspace(Integer key, Integer value, Set<Integer[]> changes){
-    for(Integer[] c : changes){ // c = {key, version, value, r/w}
-      if(c[0].equals(key)){ // find the change with the same key of the write
-        if(c[3] == 0){ // if it is a read, increment the version
-          c[1] = c[1] + 1;
-        }
-        c[2] = value;
-        c[3] = 1;
-        break;
-      }
-    }
-  }
-
-  // print workspace for debugging
-  private String printWorkspace(Set<Integer[]> ws){
-    String res = "";
-    for(Integer[] i : ws){
-      res = res + Arrays.toString(i) + " ";
-    }
-    return res;
+  private int getVersionFromKey(int key){
+    return dataStore.getVersion(key);
   }
 
-  // loop in the workspace for that txn and compare the version
+  // loop in the write set of that txn and compare the version
   // can change if all the versions are +1 
   // lock objects so that other clients cannot commit in the meantime
-  private Boolean checkIfCanChange(Set<Integer[]> changes){
-    for(Integer[] c : changes){ // c = {key, version, value, r/w}
-                                // dataStore.get(c[0]) = {version, value, lock}
-      
-      if(c[3].equals(1)){
-        // if the lock on the key is already acquired (set to 1)
-        // or the version of the change is not the next one
-        // return false; else continue
-        if( dataStore.get(c[0])[2].equals(1) ||
-          !dataStore.get(c[0])[0].equals(c[1]-1) ){
-          return false;
-        }
+  private Boolean checkIfCanChange(TxnId txn, TxnWorkspace ws){
+    for(int i=0; i<ws.writeSize(); i++){
+      int key = ws.writeKey(i);
+      // if the lock on the key is already acquired by another txn return false
+      if( locks.isLocked(key) ){
+        locks.conflict();
+        printLog(() -> "\t\t" + txn.name() + " SERVER " + serverId + " Key " + key + " locked by " + locks.owner(key).name()
+                 + " since " + locks.heldFor(key) + " ms", Verbose);
+        return false;
+      }
+      // if the version of the change is not the next one return false; else continue
+      if( dataStore.getVersion(key) != ws.getVersion(key)-1 ){
+        return false;
       }
-
     }
+    // a write was lost in a crash, the changes of the txn are not complete
+    if(ws.isIncomplete()) return false;
     // lock only after being sure it can commit
-    LockChanges(changes);
+    locks.lockAll(txn, ws);
     return true;
   }
 
-  // apply changes in the workspace only for writes operations
-  private void ApplyChanges(Set<Integer[]> changes){
-    for(Integer[] c : changes){ // c = {key, version, value, r/w}
-      if(c[3].equals(1)){ 
-        dataStore.replace(c[0],new Integer[] {c[1],c[2],0});
+  // the txn only read from this server: the versions read must still be the current ones
+  // and no other txn must be about to change them
+  private boolean checkReads(TxnWorkspace ws){
+    for(int i=0; i<ws.readSize(); i++){
+      int key = ws.readKey(i);
+      if( locks.isLocked(key) || dataStore.getVersion(key) != ws.getVersion(key) ){
+        return false;
       }
     }
+    return true;
   }
 
-  // free lock of all writes operations in workspace
-  private void FreeLocks(Set<Integer[]> changes){
-    for(Integer[] c : changes){ // c = {key, version, value, r/w}
-      if(c[3].equals(1)){ 
-        dataStore.get(c[0])[2] = 0;
-      }
+  // apply changes in the workspace only for writes operations
+  // a key already at a newer version is skipped: after a crash the commits that were not logged
+  // (presumed commit) are prepared again and may be decided in any order
+  private void ApplyChanges(TxnWorkspace ws){
+    for(int i=0; i<ws.writeSize(); i++){
+      int key = ws.writeKey(i);
+      if(dataStore.getVersion(key) < ws.getVersion(key)) dataStore.apply(key, ws.getVersion(key), ws.getValue(key));
     }
   }
 
-  // lock all writes operations in workspace
-  private void LockChanges(Set<Integer[]> changes){
-    for(Integer[] c : changes){ // c = {key, version, value, r/w}
-      if(c[3].equals(1)){
-        dataStore.get(c[0])[2] = 1;
-      }
-    }
+  // the txn is over on this server: trace and print the sum of the datastore
+  private void check(TxnId txnId, boolean decision){
+    trace.apply(txnId, decision, dataStore.sum());
+    printLog(() -> printCheck(txnId), Check);
   }
 
   // print the sum of the values of the datastore
   // used to check the correctness
   private String printCheck(TxnId txnId){
     String res = "[CHECK] ";
-    res = res + txnId.name + " " + getSelf().path().name() + " ";
-    Integer sum = 0;
-    for(Integer key : dataStore.keySet()){
-      sum = sum + dataStore.get(key)[1];
-    }
-    res = res + sum;
+    res = res + txnId.name() + " " + getSelf().path().name() + " ";
+    res = res + dataStore.sum();
     return res;
   }
 
@@ -274,31 +430,225 @@ public class TxnServer extends AbstractActor {
   private void terminationProtocol(TxnId txn){
     for(ActorRef i : txnParticipants.get(txn)){
       if(!i.equals(getSelf())){
+        timeouts.askedAgain(txn, Phase.DECISION, i);
         sendReal(new ParticipantsDecisionMsg(txn), getSelf(), i);
       }
     }
-    setTimeout(txn, TxnSystem.N_SERVERS*TxnSystem.processTime);
+    setTimeout(txn);
   }
 
-  // set a decision timeout with delay t
-  private void setTimeout(TxnId txn, int t){
-    Cancellable timeout = getContext().system().scheduler().scheduleOnce(
-            Duration.create(t, TimeUnit.MILLISECONDS),
+  // ask the decisions of all the txns in doubt after a recovery, with one message per participant
+  // (instead of one per txn and participant); retried with exponential backoff until all are known
+  private void queryInDoubt(){
+    for(TxnId txn : new ArrayList<>(inDoubt)){
+      if(workSpace.get(txn) == null) inDoubt.remove(txn);   // decided meanwhile
+    }
+    if(inDoubt.isEmpty()) return;
+
+    Map<ActorRef, List<TxnId>> queries = new HashMap<>();
+    for(TxnId txn : inDoubt){
+      for(ActorRef i : txnParticipants.get(txn)){
+        if(!i.equals(getSelf())) queries.computeIfAbsent(i, p -> new ArrayList<>()).add(txn);
+      }
+    }
+    printLog(() -> "\t\t" + "SERVER " + serverId + " Asking " + inDoubt.size() + " txns in doubt to " + queries.size()
+             + " participants (retry in " + queryBackoff + " ms)", Termination);
+    for(ActorRef i : queries.keySet()){
+      List<TxnId> txns = queries.get(i);
+      sendReal(txns.size() == 1 ? new ParticipantsDecisionMsg(txns.get(0)) : new ParticipantsDecisionBatchMsg(txns), getSelf(), i);
+    }
+
+    // some jitter, so that servers recovering together do not retry together
+    int delay = queryBackoff/2 + r.nextInt(queryBackoff);
+    getContext().system().scheduler().scheduleOnce(
+            Duration.create(delay, TimeUnit.MILLISECONDS),
             getSelf(),
-            new TxnDecisionTimeoutMsg(txn), // message sent to myself
+            new QueryRetryMsg(queryRound), // message sent to myself
             getContext().system().dispatcher(), getSelf()
     );
-    decisionTimeout.put(txn, timeout);
+    queryBackoff = Math.min(2*queryBackoff, TxnSystem.maxQueryBackoff*timeouts.timeout(Phase.DECISION));
+  }
+
+  // set a decision timeout, long enough for the slowest peer asked and not answered yet
+  private void setTimeout(TxnId txn){
+    timers.arm(txn, Phase.DECISION, timeouts.timeout(txn, Phase.DECISION), new TxnDecisionTimeoutMsg(txn));
   }
 
   // cancel a certain timeout
   private void cancelTimeout(TxnId txn){
-    if(decisionTimeout.get(txn) != null) decisionTimeout.get(txn).cancel();
+    timers.cancel(txn, Phase.DECISION);
+    timeouts.forget(txn);
+  }
+
+  // schedule a sync of the log if not already scheduled
+  // all the records appended until then are made durable together
+  private void scheduleSync(){
+    if(syncScheduled) return;
+    syncScheduled = true;
+    getContext().system().scheduler().scheduleOnce(
+            Duration.create(TxnSystem.groupCommitTime, TimeUnit.MILLISECONDS),
+            getSelf(),
+            new LogSyncMsg(), // message sent to myself
+            getContext().system().dispatcher(), getSelf()
+    );
+  }
+
+  // acknowledge the decision to the coordinator
+  // with the log, only once the decision is durable (the txn can't be in doubt after a crash)
+  private void sendAck(TxnId txn){
+    if(wal != null){
+      pendingAcks.add(txn);
+      scheduleSync();
+      return;
+    }
+    sendReal(new DecisionAckMsg(txn), getSelf(), txn.coordinator);
+  }
+
+  // tell the coordinator the outcome of a one-phase commit
+  // with the log, only once the decision is durable
+  private void sendOnePhaseResult(TxnId txn){
+    OnePhaseResultMsg result = new OnePhaseResultMsg(txnHistory.get(txn), txn, txnHistory.timestamp(txn));
+    if(wal != null){
+      pendingResults.add(result);
+      scheduleSync();
+      return;
+    }
+    sendReal(result, getSelf(), txn.coordinator);
+  }
+
+  // keep the decision in the history, unless it is the presumed one
+  private void record(TxnId txn, boolean decision){
+    if(!TxnSystem.presumed(decision)) txnHistory.put(txn, decision);
+  }
+
+  // log the final decision, apply it to the datastore and add it to the history
+  // a commit adds new versions at its commit timestamp
+  private void decide(TxnId txn, boolean decision, long timestamp){
+    decide(txn, decision, timestamp, !TxnSystem.presumed(decision));
+  }
+
+  // the presumed decision is neither logged nor recorded (keep is false)
+  private void decide(TxnId txn, boolean decision, long timestamp, boolean keep){
+    if(decision && timestamp == 0) timestamp = clock.tick();  // unknown commit timestamp, the txn is committed now
+    if(wal != null){
+      if(keep) wal.logDecision(txn, decision, timestamp);
+      votePosition.remove(txn);
+      scheduleSync();
+    }
+    apply(txn, decision, timestamp, keep);
+  }
+
+  // apply a decision already logged to the datastore and add it to the history
+  private void apply(TxnId txn, boolean decision, long timestamp, boolean keep){
+    if( decision ) ApplyChanges(workSpace.get(txn));
+    locks.releaseAll(txn); // free the locks that may have been acquired
+    if(keep) txnHistory.put(txn, decision, timestamp);
+
+    if(versions != null){
+      if(decision){
+        TxnWorkspace ws = workSpace.get(txn);
+        for(int i=0; i<ws.writeSize(); i++){
+          if(dataStore.getVersion(ws.writeKey(i)) != ws.getVersion(ws.writeKey(i))) continue;  // older than the current one
+          versions.add(ws.writeKey(i), timestamp, ws.getValue(ws.writeKey(i)));
+        }
+        clock.observe(timestamp);
+      }
+      retryDeferredReads();   // the locks are released
+    }
+  }
+
+  // read a key from the snapshot of a read-only txn
+  // if the key is locked, a txn may commit before the snapshot: wait for its decision
+  // any txn validated later gets a larger timestamp, so it can't be in the snapshot
+  private void snapshotRead(FwdReadMsg msg){
+    clock.observe(msg.snapshot);
+
+    if(locks.isLocked(msg.key)){
+      deferredReads.add(msg);
+      return;
+    }
+    if(!versions.canRead(msg.key, msg.snapshot)){   // the coordinator will timeout and abort
+      printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + " Snapshot too old for key " + msg.key, Verbose);
+      return;
+    }
+    reply(new FwdReadResultMsg(msg.key, versions.read(msg.key, msg.snapshot), msg.txn), msg.txn.coordinator);
+  }
+
+  private void retryDeferredReads(){
+    if(deferredReads.isEmpty()) return;
+    List<FwdReadMsg> retry = new ArrayList<>(deferredReads);
+    deferredReads.clear();
+    for(FwdReadMsg msg : retry){
+      snapshotRead(msg);
+    }
+  }
+
+  // rebuild the state of the server from the last checkpoint and the tail of the log
+  // committed write sets are applied again, voted txns without a decision are prepared again
+  private void replayLog(){
+    dataStore = initDataStore();
+    locks = initLocks();
+    long from = checkpoint.load(dataStore);
+    Map<TxnId, TxnWorkspace> prepared = new LinkedHashMap<>();
+    ActorRefProvider provider = ((ExtendedActorSystem) getContext().system()).provider();
+
+    wal.replay(from, provider::resolveActorRef, new TxnLog.Replay() {
+      @Override
+      public void onVote(long position, TxnId txn, Set<ActorRef> participants, int[] keys, int[] versions, int[] values) {
+        TxnWorkspace ws = newWorkspace();
+        for(int i=0; i<keys.length; i++){
+          ws.restoreWrite(keys[i], versions[i], values[i]);
+        }
+        prepared.put(txn, ws);
+        txnParticipants.put(txn, participants);
+        votePosition.put(txn, position);
+      }
+
+      @Override
+      public void onDecision(TxnId txn, boolean commit, long timestamp) {
+        TxnWorkspace ws = prepared.remove(txn);
+        if(ws != null && commit) ApplyChanges(ws);
+        if(commit && Collections.singleton(txn.coordinator).equals(txnParticipants.get(txn))){   // one-phase
+          onePhasePosition.put(txn, votePosition.get(txn));
+        }
+        txnParticipants.remove(txn);
+        votePosition.remove(txn);
+        txnHistory.put(txn, commit, timestamp);
+        clock.observe(timestamp);
+      }
+    });
+
+    for(TxnId txn : prepared.keySet()){
+      locks.lockAll(txn, prepared.get(txn));
+      workSpace.put(txn, prepared.get(txn));
+      txnState.put(txn, CrashServerType.AfterVote.name());
+    }
+
+    // the old versions are lost, older snapshots can't be served anymore
+    if(versions != null) versions = new TxnVersions(dataStore, clock.tick());
   }
 
   private void crash(){
-    for(TxnId txn : decisionTimeout.keySet()){    //delete all pending timeouts
-      cancelTimeout(txn);
+    trace.crash();
+    timers.clear();   //delete all pending timeouts
+    timeouts.clear();
+    inDoubt.clear();
+    if(wal != null){    // lose everything that is not in the log
+      wal.discard();
+      pendingVotes.clear();
+      pendingAcks.clear();
+      pendingResults.clear();
+      pendingCommits.clear();
+      syncScheduled = false;
+      votePosition.clear();
+      onePhasePosition.clear();
+      checkpointing = false;
+      checkpointPosition = -1;    // publish again after the recovery
+      deferredReads.clear();
+      workSpace.clear();
+      txnParticipants.clear();
+      txnHistory.clear();
+      txnState.clear();
     }
     //set a time to wake up from crash
     getContext().system().scheduler().scheduleOnce(
@@ -313,118 +663,380 @@ public class TxnServer extends AbstractActor {
   /*-- Message handlers ----------------------------------------------------- */
 
   private void onFwdReadMsg(FwdReadMsg msg) {
+    if(msg.snapshot > 0){   // read-only txn: no workspace, validation and vote
+      snapshotRead(msg);
+      return;
+    }
 
-    workSpace.putIfAbsent(msg.txn, new HashSet<>());
+    TxnWorkspace ws = workSpace.computeIfAbsent(msg.txn, txn -> newWorkspace());
     txnState.put(msg.txn,CrashServerType.BeforeVote.name());
 
-    Integer value = getValueFromKey(msg.key, workSpace.get(msg.txn));
-    Integer version = getVersionFromKey(msg.key);
+    int value = getValueFromKey(msg.key, ws);
+    int version = getVersionFromKey(msg.key);
 
-    addWorkspace(msg.key, version, value, workSpace.get(msg.txn));   
+    ws.read(msg.key, version, value);   // put a read operation if the key is not already in the workspace
+    trace.read(msg.txn, msg.key, version);
 
-    printLog("\t\t" + msg.txn.name + " SERVER " + serverId + " Received Read from " + getSender().path().name()
-             + " - WS " + printWorkspace(workSpace.get(msg.txn)), "Verbose");
+    printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + " Received Read from " + getSender().path().name()
+             + " - WS " + ws, Verbose);
 
-    sendReal(new FwdReadResultMsg(msg.key, value, msg.txn), getSelf(), getSender());
+    reply(new FwdReadResultMsg(msg.key, value, msg.txn), getSender());
 
   }
 
   private void onFwdWriteMsg(FwdWriteMsg msg) {
     if(workSpace.get(msg.txn) == null){return;}
     
-    updateWorkspace(msg.key, msg.value, workSpace.get(msg.txn));
+    workSpace.get(msg.txn).write(msg.key, msg.value);   // turn the read operation put before into a write
+    trace.write(msg.txn, msg.key, msg.value);
 
-    printLog("\t\t" + msg.txn.name + " SERVER " + serverId + " Received Write from " + getSender().path().name() 
-             + " - WS " + printWorkspace(workSpace.get(msg.txn)), "Verbose");
+    printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + " Received Write from " + getSender().path().name() 
+             + " - WS " + workSpace.get(msg.txn), Verbose);
 
   }
 
+  // take some amount from the first key (read and write in the workspace)
+  // and pass it to the server of the second key, it may be this same server
+  private void onFwdTransferMsg(FwdTransferMsg msg) {
+    TxnWorkspace ws = workSpace.computeIfAbsent(msg.txn, txn -> newWorkspace());
+    txnState.put(msg.txn,CrashServerType.BeforeVote.name());
+
+    int value = getValueFromKey(msg.fromKey, ws);
+    ws.read(msg.fromKey, getVersionFromKey(msg.fromKey), value);
+    int amount = value >= 1 ? 1 + r.nextInt(value) : 0;
+    ws.write(msg.fromKey, value - amount);
+    trace.read(msg.txn, msg.fromKey, getVersionFromKey(msg.fromKey));
+    trace.write(msg.txn, msg.fromKey, value - amount);
+
+    printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + " Received Transfer from " + getSender().path().name()
+             + " - taken " + amount + " - WS " + ws, Verbose);
+
+    DepositMsg deposit = new DepositMsg(msg.fromKey, msg.toKey, amount, msg.txn);
+    if(msg.toServer.equals(getSelf())) onDepositMsg(deposit);
+    else sendReal(deposit, getSelf(), msg.toServer);
+  }
+
+  // add the amount to the second key and tell the coordinator the transfer is done
+  private void onDepositMsg(DepositMsg msg) {
+    TxnWorkspace ws = workSpace.computeIfAbsent(msg.txn, txn -> newWorkspace());
+    txnState.put(msg.txn,CrashServerType.BeforeVote.name());
+
+    int value = getValueFromKey(msg.toKey, ws);
+    ws.read(msg.toKey, getVersionFromKey(msg.toKey), value);
+    ws.write(msg.toKey, value + msg.amount);
+    trace.read(msg.txn, msg.toKey, getVersionFromKey(msg.toKey));
+    trace.write(msg.txn, msg.toKey, value + msg.amount);
+
+    printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + " Received Deposit of " + msg.amount
+             + " - WS " + ws, Verbose);
+
+    reply(new FwdTransferResultMsg(msg.fromKey, msg.toKey, msg.amount, msg.txn), msg.txn.coordinator);
+  }
+
+  // handle the operations of the batch in order, then send back all the replies together
+  private void onOpBatchMsg(OpBatchMsg msg) {
+    batchReplies = new ArrayList<>();
+    batchSender = getSender();
+    for(Object op : msg.ops){
+      if(op instanceof FwdReadMsg) onFwdReadMsg((FwdReadMsg) op);
+      else if(op instanceof FwdWriteMsg) onFwdWriteMsg((FwdWriteMsg) op);
+      else if(op instanceof FwdTransferMsg) onFwdTransferMsg((FwdTransferMsg) op);
+    }
+    List<Object> results = batchReplies;
+    batchReplies = null;
+    batchSender = null;
+
+    printLog(() -> "\t\t" + "SERVER " + serverId + " Received Batch of " + msg.ops.size() + " operations from " + getSender().path().name(), Verbose);
+
+    if(results.size() == 1) sendReal(results.get(0), getSelf(), getSender());
+    else if(results.size() > 1) sendReal(new ResultBatchMsg(results), getSelf(), getSender());
+  }
+
   /*------------------------------------------------------- */
   private void onCanCommitMsg(CanCommitMsg msg){
     if(workSpace.get(msg.txn) == null){return;}
 
-    printLog("\t\t" + msg.txn.name + " SERVER " + serverId + " Received Commit Request "
-             + " - WS " + printWorkspace(workSpace.get(msg.txn)), "Verbose");
+    printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + " Received Commit Request "
+             + " - WS " + workSpace.get(msg.txn), Verbose);
 
     // check if server should crash (before sending vote)
     if(nextCrash.name().equals(txnState.get(msg.txn))) {
-      printLog("\t\t" + "SERVER " + serverId + " Crashing - " + nextCrash.name(), "Check");
+      printLog(() -> "\t\t" + "SERVER " + serverId + " Crashing - " + nextCrash.name(), Check);
       crash();
       return;
     }
 
-    Boolean canChange = checkIfCanChange(workSpace.get(msg.txn));
+    if(msg.writes == 0){  // read-only participant: vote and forget the txn, no second phase
+      boolean valid = checkReads(workSpace.get(msg.txn));
+      printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + " Read-only " + (valid ? "valid" : "not valid"), Verbose);
+      workSpace.remove(msg.txn);
+      txnState.remove(msg.txn);
+      if(!valid) record(msg.txn, false);   // the txn will abort
+      trace.vote(msg.txn, valid);
+      sendReal(new ServerDecisionMsg(valid, true, msg.txn, valid ? clock.tick() : 0), getSelf(), getSender());
+      return;
+    }
+
+    // a write was lost in a crash, the txn can't commit
+    Boolean canChange = workSpace.get(msg.txn).writeSize() == msg.writes && checkIfCanChange(msg.txn, workSpace.get(msg.txn));
 
     if(canChange){ 
-      printLog("\t\t" + msg.txn.name + " SERVER " + serverId + " Can Change", "Verbose");
-      setTimeout(msg.txn, TxnSystem.N_SERVERS*TxnSystem.processTime); // start a timeout waiting for a decision
+      printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + " Can Change", Verbose);
+      timeouts.asked(msg.txn, Phase.DECISION, getSender());
+      setTimeout(msg.txn); // start a timeout waiting for a decision
       txnParticipants.put(msg.txn, msg.participants); // save the set of participants to the transaction (for termination protocol)
+      if(wal != null){  // the vote is sent once it is in the log (see onLogSyncMsg)
+        votePosition.put(msg.txn, wal.logVote(msg.txn, msg.participants, workSpace.get(msg.txn)));
+        pendingVotes.add(msg.txn);
+        scheduleSync();
+        return;
+      }
     } 
     else{   // if the server send an abort vote it can immediatly abort (coordinator decision will be abort)
-      printLog("\t\t" + msg.txn.name + " SERVER " + serverId + " Can't Change", "Verbose");
+      printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + " Can't Change", Verbose);
       workSpace.remove(msg.txn);    // clear the workspace
-      txnHistory.put(msg.txn, canChange); // save the decision in the history
+      record(msg.txn, canChange); // save the decision in the history
+      if(wal != null && !TxnSystem.presumed(canChange)){  // an abort does not need to wait for the log
+        wal.logDecision(msg.txn, canChange, 0);
+        scheduleSync();
+      }
     }
 
-    sendReal(new ServerDecisionMsg(canChange, msg.txn), getSelf(), getSender());   // send the vote
+    trace.vote(msg.txn, canChange);
+    sendReal(new ServerDecisionMsg(canChange, false, msg.txn, canChange ? clock.tick() : 0), getSelf(), getSender());   // send the vote
 
     txnState.put(msg.txn,CrashServerType.AfterVote.name());
     // check if server should crash (after sending vote)
     if(nextCrash.name().equals(txnState.get(msg.txn))) {
-      printLog("\t\t" + "SERVER " + serverId + " Crashing - " + nextCrash.name(), "Check");
+      printLog(() -> "\t\t" + "SERVER " + serverId + " Crashing - " + nextCrash.name(), Check);
       crash();
       return;
     }
 
   }
 
+  // the server is the only participant: validate and apply at once, no vote and no decision to wait
+  // the coordinator asks again after a timeout or a crash, the history gives the same outcome
+  private void onOnePhaseCommitMsg(OnePhaseCommitMsg msg){
+    if(txnHistory.get(msg.txn) != null){   // already decided
+      sendOnePhaseResult(msg.txn);
+      return;
+    }
+    if(txnHistory.finished(msg.txn)) return;   // a late copy, the coordinator already has the outcome
+    if(pendingCommits.containsKey(msg.txn)) return;   // committed, the outcome is sent once durable
+    // the outcome is always kept, the coordinator may ask it again
+    if(workSpace.get(msg.txn) == null){    // the workspace was lost in a crash, it can't commit anymore
+      decide(msg.txn, false, 0, true);
+      sendOnePhaseResult(msg.txn);
+      return;
+    }
+
+    printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + " Received One-phase Commit Request "
+             + " - WS " + workSpace.get(msg.txn), Verbose);
+
+    // check if server should crash (before deciding)
+    if(nextCrash.name().equals(txnState.get(msg.txn))) {
+      printLog(() -> "\t\t" + "SERVER " + serverId + " Crashing - " + nextCrash.name(), Check);
+      crash();
+      return;
+    }
+
+    // a write was lost in a crash, the txn can't commit; without writes only the reads are validated
+    Boolean canChange = msg.writes == 0 ? checkReads(workSpace.get(msg.txn))
+            : workSpace.get(msg.txn).writeSize() == msg.writes && checkIfCanChange(msg.txn, workSpace.get(msg.txn));
+    printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + (canChange ? " Can Change" : " Can't Change"), Verbose);
+
+    if(canChange && wal != null){   // the server decides alone: the commit is applied and sent once durable (see onLogSyncMsg)
+      // the write set must be in the log for the replay, until the txn is finished
+      onePhasePosition.put(msg.txn, wal.logVote(msg.txn, Collections.singleton(msg.txn.coordinator), workSpace.get(msg.txn)));
+      long timestamp = clock.tick();
+      wal.logDecision(msg.txn, true, timestamp);
+      pendingCommits.put(msg.txn, timestamp);
+      scheduleSync();
+      return;
+    }
+    decide(msg.txn, canChange, canChange ? clock.tick() : 0, true);
+    workSpace.remove(msg.txn);
+    txnState.remove(msg.txn);
+    sendOnePhaseResult(msg.txn);
+
+    check(msg.txn, canChange);
+
+    // check if server should crash (after deciding)
+    if(nextCrash == CrashServerType.AfterVote) {
+      printLog(() -> "\t\t" + "SERVER " + serverId + " Crashing - " + nextCrash.name(), Check);
+      crash();
+    }
+  }
+
+  // the log records are durable: send the YES votes waiting for them
+  private void onLogSyncMsg(LogSyncMsg msg){
+    syncScheduled = false;
+    wal.sync();
+
+    for(TxnId txn : pendingVotes){
+      if(workSpace.get(txn) == null) continue;  // already decided (abort) meanwhile
+      trace.vote(txn, true);
+      sendReal(new ServerDecisionMsg(true, false, txn, clock.tick()), getSelf(), txn.coordinator);   // send the vote
+      txnState.put(txn,CrashServerType.AfterVote.name());
+    }
+    boolean voted = !pendingVotes.isEmpty();
+    pendingVotes.clear();
+
+    for(TxnId txn : pendingAcks){
+      sendReal(new DecisionAckMsg(txn), getSelf(), txn.coordinator);
+    }
+    pendingAcks.clear();
+
+    for(OnePhaseResultMsg result : pendingResults){
+      sendReal(result, getSelf(), result.txn.coordinator);
+    }
+    pendingResults.clear();
+
+    for(TxnId txn : pendingCommits.keySet()){   // the locks kept them invisible until now
+      long timestamp = pendingCommits.get(txn);
+      apply(txn, true, timestamp, true);
+      workSpace.remove(txn);
+      txnState.remove(txn);
+      sendReal(new OnePhaseResultMsg(true, txn, timestamp), getSelf(), txn.coordinator);
+      check(txn, true);
+    }
+    boolean committed = !pendingCommits.isEmpty();
+    pendingCommits.clear();
+
+    // check if server should crash (after sending vote or one-phase commit)
+    if((voted || committed) && nextCrash == CrashServerType.AfterVote) {
+      printLog(() -> "\t\t" + "SERVER " + serverId + " Crashing - " + nextCrash.name(), Check);
+      crash();
+    }
+  }
+
+  // copy the dirty pages of the datastore in the checkpoint and publish it in background
+  // the replay must start before the vote of every undecided txn, to prepare it again,
+  // and before every one-phase commit the coordinator may still ask
+  private void onCheckpointMsg(CheckpointMsg msg){
+    if(checkpointing) return;   // the previous one is still being published
+    wal.sync();   // the decisions applied to the datastore must not be missing in the log
+
+    long position = wal.syncedPosition();
+    for(Long p : votePosition.values()){
+      position = Math.min(position, p);
+    }
+    for(TxnId txn : new ArrayList<>(onePhasePosition.keySet())){
+      if(txnHistory.finished(txn)) onePhasePosition.remove(txn);
+      else position = Math.min(position, onePhasePosition.get(txn));
+    }
+    int pages = checkpoint.copyDirty(dataStore);
+    if(pages == 0 && position == checkpointPosition) return;   // nothing changed
+    checkpointing = true;
+
+    final long newPosition = position;
+    final ActorRef self = getSelf();
+    checkpoint.publish(newPosition).thenRun(
+            () -> self.tell(new CheckpointDoneMsg(newPosition, pages), ActorRef.noSender()));
+  }
+
+  private void onVacuumMsg(VacuumMsg msg){
+    int dropped = versions.vacuum(clock.now() - TxnSystem.mvccRetention);
+    if(dropped > 0) printLog(() -> "\t\t" + "SERVER " + serverId + " Vacuum dropped " + dropped + " versions", Verbose);
+  }
+
+  private void onCheckpointDoneMsg(CheckpointDoneMsg msg){
+    checkpointing = false;
+    checkpointPosition = msg.position;
+    printLog(() -> "\t\t" + "SERVER " + serverId + " Checkpoint at log position " + msg.position + " (" + msg.pages + " pages)", Verbose);
+  }
+
   /*------------------------------------------------------- */
 
   private void onFinalDecisionMsg(FinalDecisionMsg msg){
+    txnHistory.prune(msg.txn.coordinator, msg.watermark);  // forget the txns finished everywhere
+
     if(workSpace.get(msg.txn) == null) { // if already aborted do nothing
-      printLog(printCheck(msg.txn),"Check");
+      if(!TxnSystem.presumed(msg.decision)) sendAck(msg.txn);
+      check(msg.txn, msg.decision);
       return; 
     } 
     
-    printLog("\t\t" + msg.txn.name + " SERVER " + serverId + " Received Final Decision " + msg.decision, "Verbose");
+    printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + " Received Final Decision " + msg.decision, Verbose);
+    timeouts.answered(msg.txn, Phase.DECISION, getSender());
 
-    if( msg.decision ) ApplyChanges(workSpace.get(msg.txn));
-    else FreeLocks(workSpace.get(msg.txn)); // free the locks that may have been acquired
+    decide(msg.txn, msg.decision, msg.timestamp);
 
     // clear workspace and other transaction info
     workSpace.remove(msg.txn);
     txnParticipants.remove(msg.txn);
     txnState.remove(msg.txn);
     cancelTimeout(msg.txn);
-    txnHistory.put(msg.txn, msg.decision);  // add the decision to the history
+    if(!TxnSystem.presumed(msg.decision)) sendAck(msg.txn);
+
+    check(msg.txn, msg.decision);
+  }
 
-    printLog(printCheck(msg.txn),"Check");
+  // decisions sent again together by a recovered coordinator, applied one by one
+  private void onDecisionBatchMsg(DecisionBatchMsg msg){
+    printLog(() -> "\t\t" + "SERVER " + serverId + " Received Batch of " + msg.decisions.size() + " decisions from " + getSender().path().name(), Verbose);
+    for(FinalDecisionMsg decision : msg.decisions){
+      onFinalDecisionMsg(decision);
+    }
   }
 
   private void onTxnDecisionTimeoutMsg(TxnDecisionTimeoutMsg msg) throws InterruptedException {
-    printLog("\t\t" + msg.txn.name + " SERVER " + serverId + " Timeout on Final Decision ", "Termination");
-    if(txnHistory.get(msg.txn) == null) terminationProtocol(msg.txn);   // when the decision message timeouts the server start the termination protocol
+    if(!timers.expired(msg.txn, Phase.DECISION)) return;   // decided meanwhile
+    printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + " Timeout on Final Decision ", Termination);
+    if(workSpace.get(msg.txn) != null && txnHistory.get(msg.txn) == null) terminationProtocol(msg.txn);   // when the decision message timeouts the server start the termination protocol
   }
 
   private void onParticipantsDecisionMsg(ParticipantsDecisionMsg msg) throws InterruptedException {
-    if(txnHistory.get(msg.txn) != null){  // if the server knows the decision for a certain transaction
-      printLog("\t\t" + msg.txn.name + " SERVER " + serverId + " Forwarding Final Decision (termination protocol) to server " + getSender().path().name(), "Termination");
-      sendReal(new FwdParticipantsDecisionMsg(txnHistory.get(msg.txn), msg.txn), getSelf(), getSender());    // comunicate it to the asking server (termination protocol)
+    FwdParticipantsDecisionMsg decision = knownDecision(msg.txn);
+    if(decision != null) sendReal(decision, getSelf(), getSender());    // comunicate it to the asking server (termination protocol)
+  }
+
+  // answer with all the decisions known, in a single message
+  private void onParticipantsDecisionBatchMsg(ParticipantsDecisionBatchMsg msg){
+    List<FwdParticipantsDecisionMsg> decisions = new ArrayList<>();
+    for(TxnId txn : msg.txns){
+      FwdParticipantsDecisionMsg decision = knownDecision(txn);
+      if(decision != null) decisions.add(decision);
     }
+    if(!decisions.isEmpty()) sendReal(new FwdParticipantsDecisionBatchMsg(decisions), getSelf(), getSender());
+  }
+
+  // the decision of the txn for the asking server, null if unknown
+  private FwdParticipantsDecisionMsg knownDecision(TxnId txn){
+    if(txnHistory.get(txn) != null){  // if the server knows the decision for a certain transaction
+      printLog(() -> "\t\t" + txn.name() + " SERVER " + serverId + " Forwarding Final Decision (termination protocol) to server " + getSender().path().name(), Termination);
+      return new FwdParticipantsDecisionMsg(txnHistory.get(txn), txn, txnHistory.timestamp(txn));
+    }
+    if(TxnSystem.presumption.equals("Abort") && workSpace.get(txn) == null){  // not prepared here and not remembered: aborted
+      printLog(() -> "\t\t" + txn.name() + " SERVER " + serverId + " Presumed abort (termination protocol) to server " + getSender().path().name(), Termination);
+      return new FwdParticipantsDecisionMsg(false, txn, 0);
+    }
+    return null;
+  }
+
+  // the decisions known by another participant, applied one by one
+  private void onFwdParticipantsDecisionBatchMsg(FwdParticipantsDecisionBatchMsg msg) throws InterruptedException {
+    for(FwdParticipantsDecisionMsg decision : msg.decisions){
+      onFwdParticipantsDecisionMsg(decision);
+    }
+  }
+
+  private void onQueryRetryMsg(QueryRetryMsg msg){
+    if(msg.round == queryRound) queryInDoubt();
   }
 
   private void onFwdParticipantsDecisionMsg(FwdParticipantsDecisionMsg msg) throws InterruptedException {
     if(workSpace.get(msg.txn) == null) { // if already aborted do nothing
-      printLog(printCheck(msg.txn),"Check");
+      check(msg.txn, msg.decision);
       return; 
     } 
 
-    printLog("\t\t" + msg.txn.name + " SERVER " + serverId + " Received Final Decision (termination protocol)", "Termination");
+    printLog(() -> "\t\t" + msg.txn.name() + " SERVER " + serverId + " Received Final Decision (termination protocol)", Termination);
+    timeouts.answered(msg.txn, Phase.DECISION, getSender());
     
-    if( msg.decision ) ApplyChanges(workSpace.get(msg.txn));
-    else FreeLocks(workSpace.get(msg.txn)); // free the locks that may have been acquired
-
-    txnHistory.put(msg.txn, msg.decision);  // add the decision to the history
+    decide(msg.txn, msg.decision, msg.timestamp);
+    if(!TxnSystem.presumed(msg.decision)) sendAck(msg.txn);
 
     // clear workspace and other transaction info
     workSpace.remove(msg.txn);
@@ -433,42 +1045,58 @@ public class TxnServer extends AbstractActor {
     cancelTimeout(msg.txn);
     
   
-    printLog(printCheck(msg.txn),"Check");
+    check(msg.txn, msg.decision);
+  }
+
+  // advance the timeouts, the expired ones are handled as messages
+  private void onTickMsg(TickMsg msg){
+    for(Object timeout : timers.advance()){
+      getSelf().tell(timeout, getSelf());
+    }
   }
 
   private void onCrashServerMsg(CrashServerMsg msg) throws InterruptedException {
-    printLog("\t\t" + "SERVER " + serverId + " Received crash msg "+msg.nextCrash.name()+" "+msg.timeCrashed, "Crash");
+    printLog(() -> "\t\t" + "SERVER " + serverId + " Received crash msg "+msg.nextCrash.name()+" "+msg.timeCrashed, Crash);
     nextCrash = msg.nextCrash;
     timeCrashed = msg.timeCrashed;
   }
 
   private void onRecoveryMsg(RecoveryMsg msg) throws InterruptedException{
-    printLog("\t\t" + "SERVER " + serverId + " Recovered after crash", "Crash");
+    printLog(() -> "\t\t" + "SERVER " + serverId + " Recovered after crash", Crash);
+    trace.recover();
     getContext().become(createReceive());
     nextCrash = CrashServerType.NONE;
 
+    if(wal != null) replayLog();  // the memory was lost, take it back from the log
+
     // Handle crash
     // Depending on the state that the server was in each transaction,
     // do the steps of 2PC cohort recovery
     for(TxnId txn : new HashSet<>(workSpace.keySet())){
 
       if(txnState.get(txn).equals(CrashServerType.BeforeVote.name())){
-        printLog("\t\t" + txn.name + " SERVER " + serverId + " Sending abort after recovery", "Crash");
+        printLog(() -> "\t\t" + txn.name() + " SERVER " + serverId + " Sending abort after recovery", Crash);
         workSpace.remove(txn);        // clear the workspace
-        txnHistory.put(txn, false);   // save the abort decision in the history
-        sendReal(new ServerDecisionMsg(false, txn), getSelf(), txn.coordinator);   // send the vote
-        printLog(printCheck(txn),"Check");
+        record(txn, false);   // save the abort decision in the history
+        trace.vote(txn, false);
+        sendReal(new ServerDecisionMsg(false, false, txn, 0), getSelf(), txn.coordinator);   // send the vote
+        check(txn, false);
       }
 
       if(txnState.get(txn).equals(CrashServerType.AfterVote.name())){
-        printLog("\t\t" + txn.name + " SERVER " + serverId + " Ask to the others after recovery", "Crash");
-        terminationProtocol(txn);
+        printLog(() -> "\t\t" + txn.name() + " SERVER " + serverId + " Ask to the others after recovery", Crash);
+        inDoubt.add(txn);
       }
 
       txnState.remove(txn);
       
     }
 
+    // all together, starting from the usual decision timeout
+    queryRound++;
+    queryBackoff = timeouts.timeout(Phase.DECISION);
+    queryInDoubt();
+
   }
 
   @Override
@@ -476,12 +1104,25 @@ public class TxnServer extends AbstractActor {
     return receiveBuilder()
             .match(FwdReadMsg.class,  this::onFwdReadMsg)
             .match(FwdWriteMsg.class,  this::onFwdWriteMsg)
+            .match(FwdTransferMsg.class,  this::onFwdTransferMsg)
+            .match(DepositMsg.class,  this::onDepositMsg)
+            .match(OpBatchMsg.class,  this::onOpBatchMsg)
             .match(CanCommitMsg.class,  this::onCanCommitMsg)
+            .match(OnePhaseCommitMsg.class,  this::onOnePhaseCommitMsg)
             .match(FinalDecisionMsg.class,  this::onFinalDecisionMsg)
+            .match(DecisionBatchMsg.class,  this::onDecisionBatchMsg)
             .match(TxnDecisionTimeoutMsg.class,  this::onTxnDecisionTimeoutMsg)
             .match(ParticipantsDecisionMsg.class,  this::onParticipantsDecisionMsg)
             .match(FwdParticipantsDecisionMsg.class,  this::onFwdParticipantsDecisionMsg)
+            .match(ParticipantsDecisionBatchMsg.class,  this::onParticipantsDecisionBatchMsg)
+            .match(FwdParticipantsDecisionBatchMsg.class,  this::onFwdParticipantsDecisionBatchMsg)
+            .match(QueryRetryMsg.class,  this::onQueryRetryMsg)
             .match(CrashServerMsg.class,  this::onCrashServerMsg)
+            .match(LogSyncMsg.class,  this::onLogSyncMsg)
+            .match(CheckpointMsg.class,  this::onCheckpointMsg)
+            .match(CheckpointDoneMsg.class,  this::onCheckpointDoneMsg)
+            .match(VacuumMsg.class,  this::onVacuumMsg)
+            .match(TickMsg.class,  this::onTickMsg)
             .build();
   }
 
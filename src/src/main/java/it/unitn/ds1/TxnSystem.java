@@ -5,13 +5,17 @@ import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.io.IOException;
 import java.io.Serializable;
 
 import java.time.Duration;
 import akka.actor.*;
+import akka.dispatch.Dispatchers;
+import akka.serialization.SerializationExtension;
 
 import it.unitn.ds1.TxnClient.StopMsg;
+import it.unitn.ds1.TxnLogger.Level;
 
 import it.unitn.ds1.TxnClient.WelcomeClientMsg;
 import it.unitn.ds1.TxnCoordinator.WelcomeCoordMsg;
@@ -41,10 +45,105 @@ public class TxnSystem {
   final static int simDuration = 90*1000; // sec*1000
 
   static final String logMode = "Verbose";
+
+  // durability: when enabled every server keeps a write-ahead log and every coordinator a log of its decisions,
+  // they forget their memory when crashing and rebuild it from the log when recovering
+  final static boolean walEnabled = false;
+  final static String walDir = "wal";
+  final static int groupCommitTime = 5;   // ms to wait collecting log records before a single fsync
+  final static int checkpointTime = 2000;  // ms between two incremental checkpoints of the datastore
+  final static int idBlock = 1024;        // txn ids reserved at a time in the log of a coordinator
+
+  // multi-version storage: read-only txns read from a snapshot, without validation and votes
+  // (off keeps the baseline workload: only with it the clients begin some read-only txns)
+  final static boolean mvccEnabled = false;
+  final static int mvccRetention = 10000; // ms of old versions kept for the snapshots
+  final static int vacuumTime = 1000;     // ms between two vacuums of the old versions
+
+  // read-modify-write on the servers: the client asks to move an amount between two keys
+  // and the servers owning them read and write the values, instead of two reads and two writes
+  final static boolean transferEnabled = false;
+
+  // the operations forwarded by a coordinator to the same server within this window (ms)
+  // travel in a single batch message, and so do the replies; 0 sends every operation alone
+  final static int batchWindow = 0;
+
+  // operations every client keeps in flight in a TXN (1 waits for every result before the next one)
+  final static int pipelineDepth = 1;
+  // LOCAL_PROBABILITY of the client TXNs use the keys of a single server (off: any key, as the baseline)
+  final static boolean localTxns = false;
+  // the clients choose all the operations of a TXN at the beginning and read all their keys at once
+  final static boolean declareReadSet = false;
+
+  // a TXN with a single server is validated and applied by it in one step, without votes
+  final static boolean onePhaseCommit = false;
+
+  // 2PC variant: "None" keeps every decision until all the servers applied it,
+  // "Abort" (presumed abort) and "Commit" (presumed commit) keep no record and send no ack
+  // for the presumed outcome: a txn that nobody remembers got the presumed decision
+  static final String presumption = "None";
+
+  // ms of a tick of the timeout wheel of every coordinator and server
+  final static int timerTick = 10;
+
+  // timeouts waiting for the replies: "Fixed" waits N_SERVERS*processTime for everybody,
+  // "Adaptive" measures the response times of every peer and waits until the phi-accrual
+  // suspicion of the peer reaches phiThreshold (see TxnTimeoutPolicy)
+  static final String timeoutPolicy = "Fixed";
+  final static double phiThreshold = 8;
+  final static int rttWindow = 100;     // last response times kept per peer
+  final static int minDeviation = 10;   // ms, lower bound of the deviation of the response times
+
+  // admission control: a coordinator drives at most maxActiveTxns TXNs at once (0 = no limit),
+  // a further TxnBeginMsg waits up to admissionWait ms for a free slot, then gets a busy reply
+  final static int maxActiveTxns = 0;
+  final static int admissionWait = 200;
+  // the clients begin on the least loaded of two random coordinators, instead of any of them
+  final static boolean twoChoices = true;
+
+  // a recovered server asks the decisions of all its txns in doubt with one message per participant,
+  // retried with a backoff doubling from the decision timeout up to maxQueryBackoff times it
+  // (the decision timeout of any coordinator, as measured before the crash)
+  final static int maxQueryBackoff = 8;
+
+  // the messages between the actors are encoded by TxnSerializer and the receiver gets the decoded copy,
+  // as they would travel between JVMs; the cost of the encoding is printed at the end
+  final static boolean serializeMessages = false;
+
+  // dispatchers: "Default" runs every actor on the default dispatcher, "PerRole" gives the servers,
+  // the coordinators and the clients a fork-join pool each, so the clients generating the load
+  // don't take the threads of the 2PC; threads are per core, throughput is the number of
+  // messages an actor handles before giving its thread back
+  static String dispatchers = "Default";
+  final static double serverThreads = 1.0;
+  final static double coordinatorThreads = 0.5;
+  final static double clientThreads = 0.25;
+  final static int serverThroughput = 20;
+  final static int coordinatorThroughput = 10;
+  final static int clientThroughput = 5;
+
+  // benchmark mode (argument "bench"): every dispatcher setup runs benchDuration ms without crashes,
+  // benchRounds times in turn, and the TXNs finished per second are compared
+  final static String[] benchSetups = {"Default", "PerRole"};
+  final static int benchDuration = 20*1000;
+  final static int benchRounds = 2;
+  static final LongAdder finishedTxns = new LongAdder();   // outcomes received by the clients
+
+  // binary trace: every actor records its events in a ring of traceRecords records mapped in traceDir/<actor>.trace,
+  // read back with TxnTraceReader (its "check" mode gives the lines read by Check, without the text log)
+  final static boolean traceEnabled = false;
+  final static String traceDir = "trace";
+  final static int traceRecords = 1 << 16;   // 32 bytes each
+
   static int seed = 0; // set 0 to generate randomly
 
   static Cancellable serverCrash;
 
+  // true if the decision is the presumed one (not recorded, not acknowledged)
+  static boolean presumed(boolean decision){
+    return decision ? presumption.equals("Commit") : presumption.equals("Abort");
+  }
+
   //Start a crash simulation
   public static class CrashServerMsg implements Serializable {
     public final CrashServerType nextCrash;
@@ -89,42 +188,26 @@ public class TxnSystem {
     maxCrash = (int)(N_SERVERS*processTime*1.5);
     minCrash = (int)(N_SERVERS*processTime*0.7);
 
-    System.out.println("Seed: " + seed);
-    System.out.println("Actor Info: clients:"+N_CLIENTS+" coordinators:"+N_COORDINATORS+" servers:"+N_SERVERS);
+    TxnLogger.log(Level.Check, "Seed: " + seed);
+    TxnLogger.log(Level.Check, "Actor Info: clients:"+N_CLIENTS+" coordinators:"+N_COORDINATORS+" servers:"+N_SERVERS);
 
-    // Create the actor system
-    Config myConfig = ConfigFactory.parseString("akka.log-dead-letters = off");
-    final ActorSystem system = ActorSystem.create("txnSystem", myConfig.withFallback(ConfigFactory.load()));
-
-    // Create client nodes and put them to a list
-    List<ActorRef> clients = new ArrayList<>();
-    for (int i=0; i<N_CLIENTS; i++) {
-      clients.add(system.actorOf(TxnClient.props(i), "txnClient" + i));
+    if(args.length > 0 && args[0].equals("bench")){
+      benchmark();
+      return;
     }
 
-    // Create coordinator nodes and put them to a list
-    List<ActorRef> coordinators = new ArrayList<>();
-    for (int i=0; i<N_COORDINATORS; i++) {
-      coordinators.add(system.actorOf(TxnCoordinator.props(i), "txnCoordinator" + i));
+    // Create the actor system
+    final ActorSystem system = createSystem();
+    if(serializeMessages){
+      TxnSerializer serializer = (TxnSerializer) SerializationExtension.get(system).findSerializerFor(new StopMsg());
+      system.registerOnTermination(() -> TxnLogger.log(Level.Check, "SERIALIZATION " + serializer.stats()));
     }
+    system.registerOnTermination(() -> TxnLogger.log(Level.Check, "LOGGER " + TxnLogger.stats()));
 
-    // Create coordinator nodes and put them to a list
+    List<ActorRef> clients = new ArrayList<>();
+    List<ActorRef> coordinators = new ArrayList<>();
     List<ActorRef> servers = new ArrayList<>();
-    for (int i=0; i<N_SERVERS; i++) {
-      servers.add(system.actorOf(TxnServer.props(i), "txnServer" + i));
-    }
-
-    // Send Welcome message to all Clients to make known the Coordinators
-    WelcomeClientMsg welcomeClient = new WelcomeClientMsg(maxKey,new ArrayList<>(coordinators));
-    for (ActorRef client: clients) {
-      client.tell(welcomeClient, ActorRef.noSender());
-    }
-
-    // Send Welcome message to all Coordinators to make known the Servers
-    WelcomeCoordMsg welcomeCoord = new WelcomeCoordMsg(new ArrayList<>(servers));
-    for (ActorRef client: coordinators) {
-      client.tell(welcomeCoord, ActorRef.noSender());
-    }
+    startActors(system, clients, coordinators, servers);
     
     // ------------------ Automated crash simulator ------------------
     system.scheduler().scheduleWithFixedDelay(
@@ -137,13 +220,13 @@ public class TxnSystem {
                   ActorRef serverToCrash = servers.get(r.nextInt(servers.size()));
                   CrashServerType nextCrash = CrashServerType.values()[r.nextInt(CrashServerType.values().length)];
                   int timeToCrash = (int)(((r.nextDouble())*(maxCrash - minCrash)) + minCrash);
-                  serverToCrash.tell(new CrashServerMsg(nextCrash, timeToCrash), ActorRef.noSender());
+                  serverToCrash.tell(TxnSerializer.overTheWire(system, new CrashServerMsg(nextCrash, timeToCrash)), ActorRef.noSender());
                 }
                 else{
                   ActorRef coordToCrash = coordinators.get(r.nextInt(coordinators.size()));
                   CrashCoordType nextCrash =  CrashCoordType.values()[r.nextInt(CrashCoordType.values().length)];
                   int timeToCrash = (int)(((r.nextDouble())*(maxCrash - minCrash)) + minCrash);
-                  coordToCrash.tell(new CrashCoordMsg(nextCrash, timeToCrash), ActorRef.noSender());
+                  coordToCrash.tell(TxnSerializer.overTheWire(system, new CrashCoordMsg(nextCrash, timeToCrash)), ActorRef.noSender());
                 }
                 
               }
@@ -184,12 +267,104 @@ public class TxnSystem {
 
   }
 
+  // create the actors of every role on its dispatcher and introduce them to each other
+  static void startActors(ActorSystem system, List<ActorRef> clients, List<ActorRef> coordinators, List<ActorRef> servers) {
+    // Create client nodes and put them to a list
+    for (int i=0; i<N_CLIENTS; i++) {
+      clients.add(system.actorOf(TxnClient.props(i).withDispatcher(dispatcher("clients")), "txnClient" + i));
+    }
+
+    // Create coordinator nodes and put them to a list
+    for (int i=0; i<N_COORDINATORS; i++) {
+      coordinators.add(system.actorOf(TxnCoordinator.props(i).withDispatcher(dispatcher("coordinators")), "txnCoordinator" + i));
+    }
+
+    // Create coordinator nodes and put them to a list
+    for (int i=0; i<N_SERVERS; i++) {
+      servers.add(system.actorOf(TxnServer.props(i).withDispatcher(dispatcher("servers")), "txnServer" + i));
+    }
+
+    // Send Welcome message to all Coordinators to make known the Servers
+    // (first: on their own dispatcher the clients may start before the coordinators are welcomed)
+    WelcomeCoordMsg welcomeCoord = new WelcomeCoordMsg(new ArrayList<>(servers));
+    for (ActorRef client: coordinators) {
+      client.tell(TxnSerializer.overTheWire(system, welcomeCoord), ActorRef.noSender());
+    }
+
+    // Send Welcome message to all Clients to make known the Coordinators
+    WelcomeClientMsg welcomeClient = new WelcomeClientMsg(maxKey,new ArrayList<>(coordinators));
+    for (ActorRef client: clients) {
+      client.tell(TxnSerializer.overTheWire(system, welcomeClient), ActorRef.noSender());
+    }
+  }
+
+  static ActorSystem createSystem() {
+    Config myConfig = ConfigFactory.parseString("akka.log-dead-letters = off\n" + TxnSerializer.config()
+            + pool("servers", serverThreads, serverThroughput)
+            + pool("coordinators", coordinatorThreads, coordinatorThroughput)
+            + pool("clients", clientThreads, clientThroughput));
+    return ActorSystem.create("txnSystem", myConfig.withFallback(ConfigFactory.load()));
+  }
+
+  // configuration of the dispatcher of a role
+  private static String pool(String role, double threads, int throughput) {
+    return "txn-" + role + " {\n"
+         + "  type = Dispatcher\n"
+         + "  executor = \"fork-join-executor\"\n"
+         + "  fork-join-executor { parallelism-min = 2, parallelism-factor = " + threads + ", parallelism-max = 256 }\n"
+         + "  throughput = " + throughput + "\n"
+         + "}\n";
+  }
+
+  // dispatcher of the actors of a role
+  static String dispatcher(String role) {
+    return dispatchers.equals("PerRole") ? "txn-" + role : Dispatchers.DefaultDispatcherId();
+  }
+
+  // run the same system (same seed) on every dispatcher setup, print the TXNs finished per second
+  public static void benchmark() {
+    Map<String, List<Double>> results = new LinkedHashMap<>();
+    for (int round=0; round<benchRounds; round++) {
+      for (String setup: benchSetups) {
+        dispatchers = setup;
+        ActorSystem system = createSystem();
+        List<ActorRef> clients = new ArrayList<>();
+        startActors(system, clients, new ArrayList<>(), new ArrayList<>());
+
+        finishedTxns.reset();
+        long start = System.nanoTime();
+        try {
+          Thread.sleep(benchDuration);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        double rate = finishedTxns.sum()*1e9/(System.nanoTime() - start);
+        results.computeIfAbsent(setup, k -> new ArrayList<>()).add(rate);
+        TxnLogger.log(Level.Check, "BENCHMARK round " + round + " " + setup + ": " + String.format("%.1f", rate) + " txn/s");
+
+        for (ActorRef client: clients) {
+          client.tell(new StopMsg(), ActorRef.noSender());
+        }
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().join();
+      }
+    }
+    for (String setup: results.keySet()) {
+      List<Double> rates = results.get(setup);
+      double sum = 0;
+      for (double rate: rates) sum += rate;
+      TxnLogger.log(Level.Check, "BENCHMARK " + setup + ": avg " + String.format("%.1f", sum/rates.size())
+              + " best " + String.format("%.1f", Collections.max(rates)) + " txn/s");
+    }
+  }
+
   public static void terminate(ActorSystem system, List<ActorRef> clients) {
 
     for (ActorRef client: clients) {
-      client.tell(new StopMsg(), ActorRef.noSender());
+      client.tell(TxnSerializer.overTheWire(system, new StopMsg()), ActorRef.noSender());
     }
-    System.out.println("CLIENTS STOPPED");
+    TxnLogger.log(Level.Check, "CLIENTS STOPPED");
     system.scheduler().scheduleOnce(
             Duration.ofMillis(10000),
             new Runnable() {
@@ -219,7 +394,7 @@ public class TxnSystem {
     catch (IOException ioe) {}
 
     for (ActorRef client: clients) {
-      client.tell(new StopMsg(), ActorRef.noSender());
+      client.tell(TxnSerializer.overTheWire(system, new StopMsg()), ActorRef.noSender());
     }
 
     system.scheduler().scheduleOnce(
@@ -0,0 +1,123 @@
+package it.unitn.ds1;
+
+import java.util.*;
+
+import akka.actor.ActorRef;
+
+// how long an actor waits for the reply of a peer before suspecting it
+// every phase of the txns has its own policy, fed with the response times measured in that phase
+public interface TxnTimeoutPolicy {
+
+  // a reply of the peer came ms after the request
+  void observe(ActorRef peer, long ms);
+
+  // ms to wait for the reply of the peer (null for any peer)
+  int timeout(ActorRef peer);
+
+  // the policy chosen in TxnSystem
+  static TxnTimeoutPolicy create(){
+    if(TxnSystem.timeoutPolicy.equals("Adaptive")){
+      return new PhiAccrual(TxnSystem.phiThreshold, TxnSystem.rttWindow, TxnSystem.minDeviation);
+    }
+    return new Fixed();
+  }
+
+  // the same wait for every peer, growing with the size of the system
+  class Fixed implements TxnTimeoutPolicy {
+    public void observe(ActorRef peer, long ms){}
+
+    public int timeout(ActorRef peer){
+      return TxnSystem.N_SERVERS*TxnSystem.processTime;
+    }
+  }
+
+  // phi accrual: the response times of a peer are taken as normally distributed, with the mean
+  // and the deviation of its last samples; phi(t) = -log10(P(reply later than t)) and the wait
+  // ends when phi reaches the threshold, that is a fixed number of deviations past the mean.
+  // A peer with too few samples is judged on the samples of all the peers,
+  // and the fixed timeout is used until there is none.
+  class PhiAccrual implements TxnTimeoutPolicy {
+    private static final int minSamples = 5;
+
+    private final double deviations;    // deviations past the mean where phi reaches the threshold
+    private final int window;
+    private final double minDeviation;  // ms, a too regular peer is not suspected at the first delay
+    private final Map<ActorRef, History> peers;
+    private final History all;
+    private final Fixed fallback;
+
+    public PhiAccrual(double threshold, int window, double minDeviation) {
+      this.deviations = deviations(threshold);
+      this.window = window;
+      this.minDeviation = minDeviation;
+      this.peers = new HashMap<>();
+      this.all = new History(window);
+      this.fallback = new Fixed();
+    }
+
+    public void observe(ActorRef peer, long ms){
+      peers.computeIfAbsent(peer, p -> new History(window)).add(ms);
+      all.add(ms);
+    }
+
+    public int timeout(ActorRef peer){
+      History h = peer == null ? null : peers.get(peer);
+      if(h == null || h.count < minSamples) h = all;
+      if(h.count < minSamples) return fallback.timeout(peer);
+      return (int) Math.ceil(h.mean() + deviations*Math.max(minDeviation, h.deviation()));
+    }
+
+    // phi of a reply y deviations past the mean, with the logistic approximation
+    // of the normal distribution of the Akka failure detector
+    static double phi(double y){
+      double e = Math.exp(-y*(1.5976 + 0.070566*y*y));
+      return -Math.log10(e/(1.0 + e));
+    }
+
+    // phi grows with y: find where it reaches the threshold by bisection
+    static double deviations(double threshold){
+      double lo = 0, hi = 1;
+      while(phi(hi) < threshold) hi *= 2;
+      for(int i=0; i<50; i++){
+        double mid = (lo + hi)/2;
+        if(phi(mid) < threshold) lo = mid;
+        else hi = mid;
+      }
+      return hi;
+    }
+  }
+
+  // the last samples of the response times, with their running sums
+  class History {
+    private final long[] samples;
+    private int next;
+    private int count;
+    private double sum;
+    private double squares;
+
+    History(int window) {
+      this.samples = new long[window];
+    }
+
+    void add(long ms){
+      if(count == samples.length){  // drop the oldest
+        sum -= samples[next];
+        squares -= (double) samples[next]*samples[next];
+      }
+      else count++;
+      samples[next] = ms;
+      sum += ms;
+      squares += (double) ms*ms;
+      next = (next + 1) % samples.length;
+    }
+
+    double mean(){
+      return sum/count;
+    }
+
+    double deviation(){
+      double mean = mean();
+      return Math.sqrt(Math.max(0, squares/count - mean*mean));
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package it.unitn.ds1;
+
+import java.util.*;
+
+import akka.actor.ActorRef;
+
+import it.unitn.ds1.TxnCoordinator.TxnId;
+import it.unitn.ds1.TxnTimers.Phase;
+
+// response times of the requests of an actor, and the timeouts waiting for their replies
+// the request of a phase of a txn to a peer is remembered until the peer replies
+// (only the first one if more are in flight), and the elapsed time is given to the policy
+// of the phase. The timeout of a phase of a txn waits for the slowest peer still silent.
+public class TxnTimeouts {
+  private final Map<Phase, TxnTimeoutPolicy> policies;
+  private final Map<Phase, Map<TxnId, Map<ActorRef, Long>>> asked;  // ns every request still unanswered was sent
+
+  // statistics
+  private final Map<Phase, Long> samples;
+
+  public TxnTimeouts() {
+    this.policies = new EnumMap<>(Phase.class);
+    this.asked = new EnumMap<>(Phase.class);
+    this.samples = new EnumMap<>(Phase.class);
+    for(Phase phase : Phase.values()){
+      policies.put(phase, TxnTimeoutPolicy.create());
+      asked.put(phase, new TxnMap<>());
+    }
+  }
+
+  // a request of the phase of the txn was sent to the peer
+  public void asked(TxnId txn, Phase phase, ActorRef peer){
+    asked.get(phase).computeIfAbsent(txn, t -> new HashMap<>()).putIfAbsent(peer, System.nanoTime());
+  }
+
+  public void asked(TxnId txn, Phase phase, Collection<ActorRef> peers){
+    for(ActorRef peer : peers){
+      asked(txn, phase, peer);
+    }
+  }
+
+  // the request was sent again: its response time starts now
+  public void askedAgain(TxnId txn, Phase phase, ActorRef peer){
+    Map<ActorRef, Long> waiting = asked.get(phase).get(txn);
+    if(waiting != null) waiting.remove(peer);
+    asked(txn, phase, peer);
+  }
+
+  // the peer replied to a request of the phase of the txn (nothing if it was not asked)
+  public void answered(TxnId txn, Phase phase, ActorRef peer){
+    Map<ActorRef, Long> waiting = asked.get(phase).get(txn);
+    if(waiting == null) return;
+    Long since = waiting.remove(peer);
+    if(waiting.isEmpty()) asked.get(phase).remove(txn);
+    if(since == null) return;
+    policies.get(phase).observe(peer, (System.nanoTime() - since)/1000000);
+    samples.merge(phase, 1L, Long::sum);
+  }
+
+  // ms to wait in the phase of the txn, for the slowest peer not answered yet
+  public int timeout(TxnId txn, Phase phase){
+    Map<ActorRef, Long> waiting = asked.get(phase).get(txn);
+    if(waiting == null) return timeout(phase);
+    int t = 0;
+    for(ActorRef peer : waiting.keySet()){
+      t = Math.max(t, policies.get(phase).timeout(peer));
+    }
+    return t;
+  }
+
+  // ms to wait in the phase for any peer
+  public int timeout(Phase phase){
+    return policies.get(phase).timeout(null);
+  }
+
+  // the txn is over, its requests are not waited anymore
+  public void forget(TxnId txn){
+    for(Map<TxnId, Map<ActorRef, Long>> m : asked.values()){
+      m.remove(txn);
+    }
+  }
+
+  // the replies of the requests sent so far will never come (crash)
+  // the response times measured are kept, they tell about the peers and not about the txns
+  public void clear(){
+    for(Map<TxnId, Map<ActorRef, Long>> m : asked.values()){
+      m.clear();
+    }
+  }
+
+  public String stats(){
+    StringBuilder sb = new StringBuilder(TxnSystem.timeoutPolicy);
+    for(Phase phase : samples.keySet()){
+      sb.append(", ").append(phase).append(" ").append(timeout(phase)).append(" ms (")
+        .append(samples.get(phase)).append(" samples)");
+    }
+    return sb.toString();
+  }
+}
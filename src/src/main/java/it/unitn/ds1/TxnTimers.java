@@ -0,0 +1,121 @@
+package it.unitn.ds1;
+
+import java.io.Serializable;
+import java.util.*;
+
+import it.unitn.ds1.TxnCoordinator.TxnId;
+
+// timeouts of the transactions of an actor, in a hashed timing wheel
+// every txn has at most one deadline per phase: arming it again moves the deadline.
+// The wheel is advanced by a single periodic tick of the actor, the expired timeouts
+// are given back as the messages to handle; arm and cancel are O(1).
+// An expired timeout stays armed until its message is handled (see expired), so a
+// message whose timeout was cancelled or moved meanwhile is recognized as stale.
+public class TxnTimers {
+  public enum Phase {
+    READ,       // coordinator waiting for the read results
+    VOTE,       // coordinator waiting for the votes (or the one-phase outcome)
+    ACK,        // coordinator waiting for the servers to apply the decision
+    DECISION    // server waiting for the final decision
+  }
+
+  // advance the wheel (sent periodically by the scheduler to the actor)
+  public static class TickMsg implements Serializable {}
+
+  private static class Entry {
+    final TxnId txn;
+    final Phase phase;
+    final Object msg;
+    int slot;
+    int rounds;   // full turns of the wheel still to wait
+    boolean expired;   // out of the wheel, its message is on the way
+    Entry prev, next;
+    Entry(TxnId txn, Phase phase, Object msg) {
+      this.txn = txn;
+      this.phase = phase;
+      this.msg = msg;
+    }
+  }
+
+  private final int tick;                           // ms of a tick
+  private final Entry[] wheel;                      // list of the entries of every slot
+  private final Map<Phase, Map<TxnId, Entry>> armed;
+  private int cursor;
+
+  public TxnTimers(int tick, int slots) {
+    this.tick = tick;
+    this.wheel = new Entry[slots];
+    this.armed = new EnumMap<>(Phase.class);
+    for(Phase phase : Phase.values()){
+      armed.put(phase, new TxnMap<>());
+    }
+  }
+
+  public int tick(){
+    return tick;
+  }
+
+  // set the timeout of the phase of the txn, msg is given back after delay ms
+  // an older deadline of the same phase is replaced
+  public void arm(TxnId txn, Phase phase, int delay, Object msg){
+    cancel(txn, phase);
+    int ticks = Math.max(1, (delay + tick - 1)/tick);
+    Entry e = new Entry(txn, phase, msg);
+    e.slot = (cursor + ticks) % wheel.length;
+    e.rounds = (ticks - 1) / wheel.length;
+    e.next = wheel[e.slot];
+    if(e.next != null) e.next.prev = e;
+    wheel[e.slot] = e;
+    armed.get(phase).put(txn, e);
+  }
+
+  public boolean isArmed(TxnId txn, Phase phase){
+    return armed.get(phase).containsKey(txn);
+  }
+
+  public void cancel(TxnId txn, Phase phase){
+    Entry e = armed.get(phase).remove(txn);
+    if(e != null && !e.expired) unlink(e);
+  }
+
+  // the timeout of the phase expired and was neither cancelled nor moved since: its message
+  // is not stale, the timeout is disarmed (true only once)
+  public boolean expired(TxnId txn, Phase phase){
+    Entry e = armed.get(phase).get(txn);
+    if(e == null || !e.expired) return false;
+    armed.get(phase).remove(txn);
+    return true;
+  }
+
+  public void clear(){
+    Arrays.fill(wheel, null);
+    for(Map<TxnId, Entry> m : armed.values()){
+      m.clear();
+    }
+  }
+
+  // advance the wheel by one tick, return the messages of the expired timeouts
+  public List<Object> advance(){
+    cursor = (cursor + 1) % wheel.length;
+    List<Object> expired = new ArrayList<>();
+    Entry e = wheel[cursor];
+    while(e != null){
+      Entry next = e.next;
+      if(e.rounds == 0){
+        unlink(e);
+        e.expired = true;
+        expired.add(e.msg);
+      }
+      else e.rounds--;
+      e = next;
+    }
+    return expired;
+  }
+
+  private void unlink(Entry e){
+    if(e.prev != null) e.prev.next = e.next;
+    else wheel[e.slot] = e.next;
+    if(e.next != null) e.next.prev = e.prev;
+    e.prev = e.next = null;
+  }
+}
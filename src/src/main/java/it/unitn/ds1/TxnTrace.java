@@ -0,0 +1,142 @@
+package it.unitn.ds1;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import it.unitn.ds1.TxnCoordinator.TxnId;
+
+// binary trace of the events of an actor, in a ring of fixed-size records mapped in a file
+// only the actor writes its trace (one message at a time), so there are no locks: a record is
+// written in place and then the count in the header is advanced, a reader takes the last
+// capacity records before the count. The file is in the page cache, it survives the JVM.
+// header = {magic, record size, capacity, 0, count of records written}
+// record = {ns, txn key, value, key << 32 | client << 16 | event << 8 | flag} (four longs, four stores)
+//   Begin    -> coordinator: txn          client: -
+//   Read     -> key, version read
+//   Write    -> key, value written
+//   Vote     -> flag yes
+//   Decision -> flag commit (coordinator)
+//   Apply    -> flag commit, value sum of the datastore after the decision (the [CHECK] lines)
+//   End      -> flag commit asked (client)
+//   Result   -> flag committed (client)
+//   Crash, Recover
+public class TxnTrace {
+  public enum Event { Begin, Read, Write, Vote, Decision, Apply, End, Result, Crash, Recover }
+
+  static final int MAGIC = 0x54786e54;
+  static final int HEADER = 24;
+  static final int RECORD = 32;
+  static final long NO_TXN = -1;   // txn key of the events of the clients before the accept, crashes and recoveries
+
+  private final MappedByteBuffer buffer;    // null if the trace is disabled
+  private final int capacity;               // records in the ring
+  private final int clientId;               // of the events without a txn
+  private long count;                       // records written
+
+  // statistics to measure the cost of the trace
+  private long cost;   // ns spent writing the records
+
+  private TxnTrace(MappedByteBuffer buffer, int capacity, int clientId) {
+    this.buffer = buffer;
+    this.capacity = capacity;
+    this.clientId = clientId;
+  }
+
+  // trace of the actor in a new file of the trace directory (nothing is written if disabled)
+  public static TxnTrace open(String actor, int clientId){
+    if(!TxnSystem.traceEnabled) return new TxnTrace(null, 0, clientId);
+    Path path = Paths.get(TxnSystem.traceDir, actor + ".trace");
+    int capacity = TxnSystem.traceRecords;
+    try{
+      Files.createDirectories(path.getParent());
+      try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+              StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity*RECORD);
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, RECORD);
+        buffer.putInt(8, capacity);
+        for(int at=HEADER; at<buffer.capacity(); at+=4096){   // fault the pages in now, not while tracing
+          buffer.put(at, (byte) 0);
+        }
+        return new TxnTrace(buffer, capacity, clientId);
+      }
+    }catch (IOException e){
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public static TxnTrace open(String actor){
+    return open(actor, 0);
+  }
+
+  /*-- Events --------------------------------------------------------------- */
+
+  public void begin(TxnId txn){
+    record(Event.Begin, txn, 0, 0, false);
+  }
+
+  public void begin(){
+    record(Event.Begin, null, 0, 0, false);
+  }
+
+  public void read(TxnId txn, int key, int version){
+    record(Event.Read, txn, key, version, false);
+  }
+
+  public void write(TxnId txn, int key, int value){
+    record(Event.Write, txn, key, value, false);
+  }
+
+  public void vote(TxnId txn, boolean yes){
+    record(Event.Vote, txn, 0, 0, yes);
+  }
+
+  public void decision(TxnId txn, boolean commit){
+    record(Event.Decision, txn, 0, 0, commit);
+  }
+
+  public void apply(TxnId txn, boolean commit, long sum){
+    record(Event.Apply, txn, 0, sum, commit);
+  }
+
+  public void end(boolean commit){
+    record(Event.End, null, 0, 0, commit);
+  }
+
+  public void result(long txnKey, boolean commit){
+    record(Event.Result, txnKey, clientId, 0, 0, commit);
+  }
+
+  public void crash(){
+    record(Event.Crash, null, 0, 0, false);
+  }
+
+  public void recover(){
+    record(Event.Recover, null, 0, 0, false);
+  }
+
+  private void record(Event event, TxnId txn, int key, long value, boolean flag){
+    if(txn == null) record(event, NO_TXN, clientId, key, value, flag);
+    else record(event, txn.key, txn.clientId, key, value, flag);
+  }
+
+  private void record(Event event, long txnKey, int client, int key, long value, boolean flag){
+    if(buffer == null) return;
+    long start = System.nanoTime();
+    int at = HEADER + (int) (count % capacity)*RECORD;
+    buffer.putLong(at, start);
+    buffer.putLong(at + 8, txnKey);
+    buffer.putLong(at + 16, value);
+    buffer.putLong(at + 24, (long) key << 32 | (client & 0xffff) << 16 | event.ordinal() << 8 | (flag ? 1 : 0));
+    buffer.putLong(16, ++count);   // publish the record
+    cost += System.nanoTime() - start;
+  }
+
+  public String stats(){
+    return count + " events, " + (count == 0 ? 0 : cost/count) + " ns per event";
+  }
+}
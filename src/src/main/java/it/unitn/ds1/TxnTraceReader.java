@@ -0,0 +1,105 @@
+package it.unitn.ds1;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import it.unitn.ds1.TxnCoordinator.TxnId;
+import it.unitn.ds1.TxnTrace.Event;
+
+// prints the traces of all the actors (see TxnTrace) merged in time order
+// usage: TxnTraceReader [dir] [check]
+//   the events, one per line: ms since the first event, actor, event, txn and the fields of the event
+//   with "check", the lines read by Check: "CLIENT n BEGIN" and "[CHECK] txn server sum"
+public class TxnTraceReader {
+
+  // the records of a trace still to print, from the oldest one kept in the ring
+  private static class Cursor {
+    final String actor;
+    final MappedByteBuffer buffer;
+    final int capacity;
+    long next;        // record to read
+    final long end;   // records written
+
+    Cursor(Path path) throws IOException {
+      String name = path.getFileName().toString();
+      this.actor = name.substring(0, name.length() - ".trace".length());
+      try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+        this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      buffer.order(ByteOrder.nativeOrder());
+      if(buffer.getInt(0) != TxnTrace.MAGIC || buffer.getInt(4) != TxnTrace.RECORD){
+        throw new IOException(path + " is not a trace");
+      }
+      this.capacity = buffer.getInt(8);
+      this.end = buffer.getLong(16);
+      this.next = Math.max(0, end - capacity);
+      if(next > 0) System.err.println(actor + ": " + next + " older events overwritten");
+    }
+
+    int at(){
+      return TxnTrace.HEADER + (int) (next % capacity)*TxnTrace.RECORD;
+    }
+
+    long time(){
+      return buffer.getLong(at());
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    Path dir = Paths.get(args.length > 0 ? args[0] : TxnSystem.traceDir);
+    boolean check = args.length > 1 && args[1].equals("check");
+
+    PriorityQueue<Cursor> cursors = new PriorityQueue<>(Comparator.comparingLong(Cursor::time));
+    long first = Long.MAX_VALUE;
+    try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.trace")){
+      for(Path path : files){
+        Cursor c = new Cursor(path);
+        if(c.next == c.end) continue;
+        first = Math.min(first, c.time());
+        cursors.add(c);
+      }
+    }
+
+    PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    Event[] events = Event.values();
+    StringBuilder sb = new StringBuilder();
+    while(!cursors.isEmpty()){
+      Cursor c = cursors.poll();
+      int at = c.at();
+      long time = c.buffer.getLong(at);
+      long txn = c.buffer.getLong(at + 8);
+      long value = c.buffer.getLong(at + 16);
+      long fields = c.buffer.getLong(at + 24);
+      int key = (int) (fields >> 32);
+      int client = (int) (fields >> 16) & 0xffff;
+      Event event = events[(int) (fields >> 8) & 0xff];
+      boolean flag = (fields & 1) != 0;
+
+      sb.setLength(0);
+      if(check){
+        if(event == Event.Begin && txn == TxnTrace.NO_TXN) sb.append("CLIENT ").append(client).append(" BEGIN");
+        else if(event == Event.Apply) sb.append("[CHECK] ").append(TxnId.name(txn, client)).append(" ").append(c.actor).append(" ").append(value);
+      }
+      else{
+        sb.append(String.format("%.3f", (time - first)/1e6)).append(" ").append(c.actor).append(" ").append(event);
+        if(txn != TxnTrace.NO_TXN) sb.append(" ").append(TxnId.name(txn, client));
+        switch(event){
+          case Read: sb.append(" key ").append(key).append(" version ").append(value); break;
+          case Write: sb.append(" key ").append(key).append(" value ").append(value); break;
+          case Vote: sb.append(flag ? " YES" : " NO"); break;
+          case Decision: case End: case Result: sb.append(flag ? " COMMIT" : " ABORT"); break;
+          case Apply: sb.append(flag ? " COMMIT" : " ABORT").append(" sum ").append(value); break;
+          default: break;
+        }
+      }
+      if(sb.length() > 0) out.println(sb);
+
+      if(++c.next < c.end) cursors.add(c);
+    }
+    out.flush();
+  }
+}
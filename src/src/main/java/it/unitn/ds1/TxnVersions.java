@@ -0,0 +1,73 @@
+package it.unitn.ds1;
+
+import java.util.Arrays;
+
+// committed versions of the keys of a server, for the snapshot reads (MVCC)
+// every key keeps a short chain of {commit timestamp, value}, oldest first;
+// the versions no snapshot can read anymore are dropped by vacuum()
+public class TxnVersions {
+  private final int firstKey;
+  private final long[][] timestamps;
+  private final int[][] values;
+  private final int[] count;
+
+  // all the keys start with their value in the data store at the given timestamp
+  public TxnVersions(TxnDataStore dataStore, long timestamp) {
+    this.firstKey = dataStore.firstKey();
+    int size = dataStore.size();
+    this.timestamps = new long[size][4];
+    this.values = new int[size][4];
+    this.count = new int[size];
+    for(int o=0; o<size; o++){
+      timestamps[o][0] = timestamp;
+      values[o][0] = dataStore.getValue(firstKey + o);
+      count[o] = 1;
+    }
+  }
+
+  // add the version committed at the given timestamp
+  public void add(int key, long timestamp, int value){
+    int o = key - firstKey;
+    if(count[o] == timestamps[o].length){
+      timestamps[o] = Arrays.copyOf(timestamps[o], count[o]*2);
+      values[o] = Arrays.copyOf(values[o], count[o]*2);
+    }
+    timestamps[o][count[o]] = timestamp;
+    values[o][count[o]] = value;
+    count[o]++;
+  }
+
+  // index of the newest version visible at the snapshot, -1 if it was already dropped
+  private int visible(int o, long snapshot){
+    for(int i=count[o]-1; i>=0; i--){
+      if(timestamps[o][i] <= snapshot) return i;
+    }
+    return -1;
+  }
+
+  public boolean canRead(int key, long snapshot){
+    return visible(key - firstKey, snapshot) >= 0;
+  }
+
+  // value of the key seen by the snapshot (check canRead first)
+  public int read(int key, long snapshot){
+    int o = key - firstKey;
+    return values[o][visible(o, snapshot)];
+  }
+
+  // drop the versions hidden by a newer one visible at the horizon
+  // (no snapshot older than the horizon is served anymore)
+  // return the number of versions dropped
+  public int vacuum(long horizon){
+    int dropped = 0;
+    for(int o=0; o<count.length; o++){
+      int first = visible(o, horizon);
+      if(first <= 0) continue;
+      System.arraycopy(timestamps[o], first, timestamps[o], 0, count[o] - first);
+      System.arraycopy(values[o], first, values[o], 0, count[o] - first);
+      count[o] -= first;
+      dropped += first;
+    }
+    return dropped;
+  }
+}
@@ -0,0 +1,113 @@
+package it.unitn.ds1;
+
+// workspace of a single transaction on a server
+// the entries are indexed by the offset of the key inside the range of the server,
+// the touched keys are also kept in a compact read set and write set (in order of arrival)
+public class TxnWorkspace {
+  private static final int UNTOUCHED = 0;
+  private static final int READ = 1;
+  private static final int WRITE = 2;
+
+  private final int firstKey;
+  private final int[] state;      // UNTOUCHED, READ or WRITE for every key offset
+  private final int[] version;    // version read (or version to write) for every key offset
+  private final int[] value;      // value read (or value to write) for every key offset
+
+  private final int[] readSet;    // keys read, every touched key is in the read set
+  private int readSize;
+  private final int[] writeSet;   // keys written, subset of the read set
+  private int writeSize;
+
+  private boolean incomplete;     // a key was written without being read (the read was lost in a crash)
+
+  public TxnWorkspace(int firstKey, int size) {
+    this.firstKey = firstKey;
+    this.state = new int[size];
+    this.version = new int[size];
+    this.value = new int[size];
+    this.readSet = new int[size];
+    this.writeSet = new int[size];
+  }
+
+  public boolean contains(int key){
+    return state[key - firstKey] != UNTOUCHED;
+  }
+
+  public int getValue(int key){
+    return value[key - firstKey];
+  }
+
+  public int getVersion(int key){
+    return version[key - firstKey];
+  }
+
+  // add a read operation with the current version and value found
+  // if the key is already in the workspace do nothing
+  public void read(int key, int version, int value){
+    int o = key - firstKey;
+    if(state[o] != UNTOUCHED) return;
+    state[o] = READ;
+    this.version[o] = version;
+    this.value[o] = value;
+    readSet[readSize++] = key;
+  }
+
+  // turn the read operation put before into a write
+  // change the version (only in the first change from read to write) and the value
+  // if the key was never read the write is lost and the workspace is incomplete
+  public void write(int key, int value){
+    int o = key - firstKey;
+    if(state[o] == UNTOUCHED){
+      incomplete = true;
+      return;
+    }
+    if(state[o] == READ){
+      state[o] = WRITE;
+      version[o] = version[o] + 1;
+      writeSet[writeSize++] = key;
+    }
+    this.value[o] = value;
+  }
+
+  // put back a write of a prepared transaction (recovered from the log)
+  public void restoreWrite(int key, int version, int value){
+    int o = key - firstKey;
+    if(state[o] == UNTOUCHED) readSet[readSize++] = key;
+    if(state[o] != WRITE) writeSet[writeSize++] = key;
+    state[o] = WRITE;
+    this.version[o] = version;
+    this.value[o] = value;
+  }
+
+  public boolean isIncomplete(){
+    return incomplete;
+  }
+
+  public int readSize(){
+    return readSize;
+  }
+
+  public int readKey(int i){
+    return readSet[i];
+  }
+
+  public int writeSize(){
+    return writeSize;
+  }
+
+  public int writeKey(int i){
+    return writeSet[i];
+  }
+
+  // print workspace for debugging, as {key, version, value, r/w} entries
+  @Override
+  public String toString(){
+    StringBuilder res = new StringBuilder();
+    for(int i=0; i<readSize; i++){
+      int o = readSet[i] - firstKey;
+      res.append("[").append(readSet[i]).append(", ").append(version[o]).append(", ")
+         .append(value[o]).append(", ").append(state[o] == WRITE ? 1 : 0).append("] ");
+    }
+    return res.toString();
+  }
+}
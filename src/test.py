@@ -104,6 +104,8 @@ if __name__ == '__main__':
     "coordi_crash", "server_crash", \
     'sum', 'result'])
 
+    subprocess.check_output("javac Check.java", shell=True)
+
     for i in range(n_sim):
         print("starting sim",i+1,"...")
 